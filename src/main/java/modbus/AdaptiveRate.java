@@ -0,0 +1,56 @@
+package modbus;
+
+import java.util.Arrays;
+
+/*
+ * The adaptive polling state of one block of a read plan.
+ *
+ * The rate is counted in poll cycles of the block's poll group. Every poll
+ * that returns the same data as the previous one doubles the number of
+ * cycles the block sits out, up to the configured maximum. Any change brings
+ * the block back to every cycle.
+ *
+ * A block is only polled by the task of its poll group, so the state is not
+ * shared between threads.
+ *
+ * */
+class AdaptiveRate {
+	private byte[] lastData;
+	private int period = 1;
+	private int remaining;
+
+	/**
+	 * @return true if the block should be read in this cycle
+	 */
+	boolean isDue() {
+		if (remaining > 0) {
+			remaining--;
+			return false;
+		}
+		return true;
+	}
+
+	void update(byte[] data, int maxPeriod) {
+		if (lastData != null && Arrays.equals(lastData, data)) {
+			period = Math.min(period * 2, Math.max(1, maxPeriod));
+		} else {
+			period = 1;
+		}
+		lastData = data;
+		remaining = period - 1;
+	}
+
+	/*
+	 * Called when a read failed, so that the next good read starts again at
+	 * the full rate.
+	 */
+	void reset() {
+		lastData = null;
+		period = 1;
+		remaining = 0;
+	}
+
+	int getPeriod() {
+		return period;
+	}
+}
@@ -0,0 +1,100 @@
+package modbus;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeps a dead device from holding up the other devices on its connection.
+ *
+ * After a number of consecutive failed requests the breaker opens, and the
+ * device's polls are skipped. Once the open time has passed, the breaker is
+ * half open, and the first request of the next poll decides: an answer
+ * closes it, another failure opens it again for twice as long, up to the
+ * device's probe silence.
+ *
+ * */
+class CircuitBreaker {
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	static final int DEFAULT_THRESHOLD = 3;
+	static final long MIN_OPEN_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	private State state = State.CLOSED;
+	private int failures;
+	private long openNanos = MIN_OPEN_NANOS;
+	private long retryAt;
+
+	synchronized State getState() {
+		return state;
+	}
+
+	synchronized boolean isClosed() {
+		return state == State.CLOSED;
+	}
+
+	/**
+	 * Half opens the breaker if it is open and its open time has passed.
+	 *
+	 * @return true if the caller should probe the device
+	 */
+	synchronized boolean tryHalfOpen(long now) {
+		if (state == State.OPEN && now - retryAt >= 0) {
+			state = State.HALF_OPEN;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Opens a half open breaker again when its trial ended without an
+	 * outcome, so the next poll tries again.
+	 */
+	synchronized void abandonTrial(long now) {
+		if (state == State.HALF_OPEN) {
+			state = State.OPEN;
+			retryAt = now;
+		}
+	}
+
+	/**
+	 * @return true if the state changed
+	 */
+	synchronized boolean succeeded() {
+		failures = 0;
+		openNanos = MIN_OPEN_NANOS;
+		if (state == State.CLOSED) {
+			return false;
+		}
+		state = State.CLOSED;
+		return true;
+	}
+
+	/**
+	 * @param threshold
+	 *            the consecutive failures that open the breaker, 0 to never
+	 *            open it
+	 * @param maxOpenNanos
+	 *            the longest the breaker stays open before a probe
+	 * @return true if the state changed
+	 */
+	synchronized boolean failed(long now, int threshold, long maxOpenNanos) {
+		switch (state) {
+		case CLOSED:
+			failures++;
+			if (threshold <= 0 || failures < threshold) {
+				return false;
+			}
+			openNanos = Math.min(MIN_OPEN_NANOS, maxOpenNanos);
+			break;
+		case HALF_OPEN:
+			openNanos = Math.min(openNanos * 2, Math.max(MIN_OPEN_NANOS, maxOpenNanos));
+			break;
+		default:
+			return false;
+		}
+		state = State.OPEN;
+		retryAt = now + openNanos;
+		return true;
+	}
+}
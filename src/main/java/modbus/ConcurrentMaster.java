@@ -0,0 +1,10 @@
+package modbus;
+
+/*
+ * A master that matches every response to its request by itself, so several
+ * threads may send on it at once. Requests on any other master are serialized
+ * by the connection's master lock.
+ *
+ * */
+interface ConcurrentMaster {
+}
@@ -0,0 +1,83 @@
+package modbus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The estimated cost of a read request on one connection: a fixed overhead
+ * per request, plus the time of every register it covers.
+ *
+ * The read planner uses it to decide whether bridging a gap of unused
+ * registers is cheaper than sending another request. For serial lines the
+ * transfer time follows from the baud rate. On TCP the wire time is
+ * negligible, so the cost of a register is the device's time to fetch it,
+ * and the overhead is learned from the measured round trips. Until enough
+ * of them were measured the gap is capped, so a connection whose reads are
+ * never measured does not bridge every gap on the default overhead alone.
+ *
+ * */
+class CostModel {
+	// weight of the latest measurement in the smoothed overhead
+	private static final double SMOOTHING = 0.1;
+
+	private static final double DEFAULT_OVERHEAD_NANOS = 5000000;
+	// a device's time to fetch a register, far above the wire time on Ethernet
+	private static final double DEFAULT_REGISTER_NANOS = 50000;
+
+	// measured reads after which the learned overhead is trusted
+	static final int MIN_SAMPLES = 10;
+	// the largest gap bridged until then
+	static final int UNLEARNED_MAX_GAP_REGISTERS = 16;
+
+	// request and response framing, plus the silent intervals of RTU
+	private static final int SERIAL_OVERHEAD_CHARS = 20;
+
+	private volatile double overheadNanos = DEFAULT_OVERHEAD_NANOS;
+	private volatile double registerNanos = DEFAULT_REGISTER_NANOS;
+	private final AtomicInteger samples = new AtomicInteger();
+	// true once the model follows from the line or from enough measurements
+	private volatile boolean learned;
+
+	void setSerial(int baudRate, int dataBits, int stopBits, boolean parity, boolean ascii) {
+		if (baudRate <= 0) {
+			return;
+		}
+		int charBits = 1 + dataBits + stopBits + (parity ? 1 : 0);
+		double charNanos = charBits * 1e9 / baudRate;
+		// ASCII sends every byte as two hex characters
+		registerNanos = (ascii ? 4 : 2) * charNanos;
+		overheadNanos = SERIAL_OVERHEAD_CHARS * charNanos;
+		learned = true;
+	}
+
+	/**
+	 * Learns the per-request overhead from a completed read.
+	 *
+	 * @param registers
+	 *            the number of registers read, or the number of bits divided
+	 *            by 16
+	 */
+	void record(int registers, long elapsedNanos) {
+		double overhead = Math.max(0, elapsedNanos - registers * registerNanos);
+		overheadNanos += SMOOTHING * (overhead - overheadNanos);
+		if (!learned && samples.incrementAndGet() >= MIN_SAMPLES) {
+			learned = true;
+		}
+	}
+
+	/**
+	 * @return the largest gap of unused registers that is cheaper to read
+	 *         than a request of its own
+	 */
+	int getMaxGapRegisters() {
+		return (int) Math.min(learned ? Integer.MAX_VALUE : UNLEARNED_MAX_GAP_REGISTERS, overheadNanos / registerNanos);
+	}
+
+	int getMaxGapBits() {
+		return (int) Math.min(learned ? Integer.MAX_VALUE : 16 * UNLEARNED_MAX_GAP_REGISTERS,
+				16 * overheadNanos / registerNanos);
+	}
+
+	long getOverheadNanos() {
+		return (long) overheadNanos;
+	}
+}
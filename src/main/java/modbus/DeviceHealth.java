@@ -0,0 +1,88 @@
+package modbus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+import com.serotonin.modbus4j.msg.ModbusRequest;
+import com.serotonin.modbus4j.msg.ReadCoilsRequest;
+import com.serotonin.modbus4j.msg.ReadDiscreteInputsRequest;
+import com.serotonin.modbus4j.msg.ReadHoldingRegistersRequest;
+import com.serotonin.modbus4j.msg.ReadInputRegistersRequest;
+
+/*
+ * Whether a device answers, judged from the outcome of its poll and write
+ * traffic.
+ *
+ * Any response counts as an answer, exception responses included. The
+ * device is only probed, with a read of one configurable register, once it
+ * has been silent for the configured time, either because nothing of it is
+ * polled or because it stopped answering.
+ *
+ * */
+class DeviceHealth {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(DeviceHealth.class);
+	}
+
+	static final double DEFAULT_PROBE_AFTER_SILENCE = 60;
+	static final String DEFAULT_PROBE_REGISTER = "HOLDING 0";
+
+	private volatile boolean known;
+	private volatile boolean responding;
+	private volatile long lastActivity;
+
+	void succeeded(long now) {
+		lastActivity = now;
+		responding = true;
+		known = true;
+	}
+
+	void failed(long now) {
+		lastActivity = now;
+		responding = false;
+		known = true;
+	}
+
+	boolean isResponding() {
+		return responding;
+	}
+
+	/**
+	 * @return true if nothing is known about the device, or it has been
+	 *         silent for at least the given time
+	 */
+	boolean isProbeDue(long now, long silenceNanos) {
+		return !known || now - lastActivity >= silenceNanos;
+	}
+
+	/*
+	 * Creates the read of the probe register, given like "HOLDING 0".
+	 */
+	static ModbusRequest createProbe(int slaveId, String spec) throws ModbusTransportException {
+		PointType type = PointType.HOLDING;
+		int offset = 0;
+		if (spec != null && !spec.trim().isEmpty()) {
+			try {
+				String[] parts = spec.trim().split("\\s+");
+				type = PointType.valueOf(parts[0].toUpperCase());
+				offset = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+			} catch (RuntimeException e) {
+				LOGGER.warn("invalid probe register: " + spec);
+			}
+		}
+
+		switch (type) {
+		case COIL:
+			return new ReadCoilsRequest(slaveId, offset, 1);
+		case DISCRETE:
+			return new ReadDiscreteInputsRequest(slaveId, offset, 1);
+		case INPUT:
+			return new ReadInputRegistersRequest(slaveId, offset, 1);
+		default:
+			return new ReadHoldingRegistersRequest(slaveId, offset, 1);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package modbus;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * The request limits a device has shown in practice, learned from its
+ * exception responses.
+ *
+ * The learned read counts can only lower the connection's configured
+ * counts. A timeout is no evidence of a limit, so only an illegal data value
+ * response lowers them. A learned count grows back by a quarter after an
+ * hour without refusals, until it reaches the protocol's maximum and is
+ * forgotten. The limits are stored as attributes of the device node, so they
+ * survive a restart, and are cleared by the device's "reset learned limits"
+ * action.
+ *
+ * */
+class DeviceLimits {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(DeviceLimits.class);
+	}
+
+	static final String ATTR_LEARNED_MAX_READ_REGISTER_COUNT = "learned max read register count";
+	static final String ATTR_LEARNED_MAX_READ_BIT_COUNT = "learned max read bit count";
+	static final String ATTR_UNSUPPORTED_FUNCTION_CODES = "unsupported function codes";
+
+	static final int MAX_READ_REGISTERS = 125;
+	static final int MAX_READ_BITS = 2000;
+	static final long GROW_BACK_NANOS = TimeUnit.HOURS.toNanos(1);
+
+	private final Node node;
+
+	// 0 if nothing was learned
+	private volatile int maxRegisters;
+	private volatile int maxBits;
+	private final Set<Integer> unsupported = new TreeSet<Integer>();
+
+	// the longest reads that succeeded since the link started
+	private volatile int goodRegisters;
+	private volatile int goodBits;
+	// when a learned count last changed
+	private long changed = System.nanoTime();
+
+	DeviceLimits(Node node) {
+		this.node = node;
+
+		Value registers = node.getAttribute(ATTR_LEARNED_MAX_READ_REGISTER_COUNT);
+		maxRegisters = registers != null ? registers.getNumber().intValue() : 0;
+		Value bits = node.getAttribute(ATTR_LEARNED_MAX_READ_BIT_COUNT);
+		maxBits = bits != null ? bits.getNumber().intValue() : 0;
+		Value codes = node.getAttribute(ATTR_UNSUPPORTED_FUNCTION_CODES);
+		if (codes != null && codes.getString() != null) {
+			for (String code : codes.getString().split(",")) {
+				try {
+					if (!code.trim().isEmpty()) {
+						unsupported.add(Integer.parseInt(code.trim()));
+					}
+				} catch (NumberFormatException e) {
+					LOGGER.warn("invalid function code: " + code);
+				}
+			}
+		}
+	}
+
+	int getMaxRegisters(int configured) {
+		int learned = maxRegisters;
+		return learned > 0 ? Math.min(learned, configured) : configured;
+	}
+
+	int getMaxBits(int configured) {
+		int learned = maxBits;
+		return learned > 0 ? Math.min(learned, configured) : configured;
+	}
+
+	/**
+	 * Records a read that succeeded, and grows the learned count back if it
+	 * did not change for a while.
+	 *
+	 * @return true if the limit changed
+	 */
+	synchronized boolean readSucceeded(boolean binary, int length, long now) {
+		if (binary) {
+			goodBits = Math.max(goodBits, length);
+		} else {
+			goodRegisters = Math.max(goodRegisters, length);
+		}
+		int learned = binary ? maxBits : maxRegisters;
+		if (learned <= 0 || now - changed < GROW_BACK_NANOS) {
+			return false;
+		}
+		int limit = learned + Math.max(1, learned / 4);
+		setLimit(binary, limit < (binary ? MAX_READ_BITS : MAX_READ_REGISTERS) ? limit : 0, now);
+		return true;
+	}
+
+	/**
+	 * Lowers the maximum read count below a length the device refused, but
+	 * never below the longest read that succeeded.
+	 *
+	 * @return true if the limit changed
+	 */
+	synchronized boolean readRefused(boolean binary, int length, long now) {
+		if (length <= 1) {
+			return false;
+		}
+		int good = binary ? goodBits : goodRegisters;
+		if (length <= good) {
+			return false;
+		}
+		int limit = Math.max(Math.max(good, 1), length / 2);
+		int learned = binary ? maxBits : maxRegisters;
+		if (learned > 0 && learned <= limit) {
+			return false;
+		}
+		setLimit(binary, limit, now);
+		return true;
+	}
+
+	/*
+	 * @param limit the learned count, 0 to forget it
+	 */
+	private void setLimit(boolean binary, int limit, long now) {
+		String attr = binary ? ATTR_LEARNED_MAX_READ_BIT_COUNT : ATTR_LEARNED_MAX_READ_REGISTER_COUNT;
+		if (binary) {
+			maxBits = limit;
+		} else {
+			maxRegisters = limit;
+		}
+		if (limit > 0) {
+			node.setAttribute(attr, new Value(limit));
+			LOGGER.info(node.getName() + ": learned max read " + (binary ? "bit" : "register") + " count " + limit);
+		} else {
+			node.removeAttribute(attr);
+			LOGGER.info(node.getName() + ": forgot learned max read " + (binary ? "bit" : "register") + " count");
+		}
+		changed = now;
+	}
+
+	synchronized boolean isSupported(int functionCode) {
+		return !unsupported.contains(functionCode);
+	}
+
+	/**
+	 * @return true if the function code was not known to be unsupported
+	 */
+	synchronized boolean functionRefused(int functionCode) {
+		if (!unsupported.add(functionCode)) {
+			return false;
+		}
+		StringBuilder codes = new StringBuilder();
+		for (Integer code : unsupported) {
+			if (codes.length() > 0) {
+				codes.append(", ");
+			}
+			codes.append(code);
+		}
+		node.setAttribute(ATTR_UNSUPPORTED_FUNCTION_CODES, new Value(codes.toString()));
+		LOGGER.info(node.getName() + ": learned unsupported function code " + functionCode);
+		return true;
+	}
+
+	synchronized void reset() {
+		maxRegisters = 0;
+		maxBits = 0;
+		unsupported.clear();
+		node.removeAttribute(ATTR_LEARNED_MAX_READ_REGISTER_COUNT);
+		node.removeAttribute(ATTR_LEARNED_MAX_READ_BIT_COUNT);
+		node.removeAttribute(ATTR_UNSUPPORTED_FUNCTION_CODES);
+	}
+}
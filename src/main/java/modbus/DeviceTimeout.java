@@ -0,0 +1,90 @@
+package modbus;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The timeout and retries of one device's requests.
+ *
+ * By default a device uses its connection's. It can have its own, and in
+ * automatic mode its timeout follows its recent response times: the 99th
+ * percentile times a factor, no shorter than the minimum and no longer than
+ * the configured timeout. Until enough responses were seen, the configured
+ * timeout is used.
+ *
+ * */
+class DeviceTimeout {
+	static final double DEFAULT_FACTOR = 3;
+	static final int DEFAULT_MIN_MS = 50;
+
+	static final int SAMPLES = 200;
+	static final int MIN_SAMPLES = 20;
+	private static final int UPDATE_EVERY = 10;
+	private static final double PERCENTILE = 0.99;
+
+	private volatile int timeoutMs;
+	private volatile int retries = -1;
+	private volatile boolean auto;
+	private volatile double factor = DEFAULT_FACTOR;
+	private volatile int minMs = DEFAULT_MIN_MS;
+
+	private final ResponseTimes times = new ResponseTimes(SAMPLES);
+	private int sinceUpdate;
+	private volatile long percentileNanos;
+
+	/**
+	 * @param timeoutMs
+	 *            the device's timeout, 0 for the connection's
+	 * @param retries
+	 *            the device's retries, -1 for the connection's
+	 */
+	synchronized void configure(int timeoutMs, int retries, boolean auto, double factor, int minMs) {
+		this.timeoutMs = Math.max(0, timeoutMs);
+		this.retries = Math.max(-1, retries);
+		this.auto = auto;
+		this.factor = factor > 0 ? factor : DEFAULT_FACTOR;
+		this.minMs = Math.max(1, minMs);
+	}
+
+	/**
+	 * Adds the time a response took.
+	 *
+	 * @return true if the automatic timeout changed
+	 */
+	synchronized boolean record(long elapsedNanos) {
+		if (!auto) {
+			return false;
+		}
+		times.add(elapsedNanos);
+		if (times.size() < MIN_SAMPLES || ++sinceUpdate < UPDATE_EVERY) {
+			return false;
+		}
+		sinceUpdate = 0;
+
+		long p = times.percentile(PERCENTILE);
+		if (p == percentileNanos) {
+			return false;
+		}
+		percentileNanos = p;
+		return true;
+	}
+
+	/**
+	 * @return the timeout of the device's requests, 0 for the connection's
+	 */
+	int getTimeout(int connectionTimeout) {
+		long p = percentileNanos;
+		if (!auto || p == 0) {
+			return timeoutMs;
+		}
+		int ceiling = timeoutMs > 0 ? timeoutMs : connectionTimeout;
+		long t = (long) Math.ceil(p * factor / TimeUnit.MILLISECONDS.toNanos(1));
+		return (int) Math.max(Math.min(t, ceiling), Math.min(minMs, ceiling));
+	}
+
+	/**
+	 * @return the retries of the device's requests, -1 for the connection's
+	 */
+	int getRetries() {
+		return retries;
+	}
+}
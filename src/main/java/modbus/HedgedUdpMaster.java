@@ -0,0 +1,189 @@
+package modbus;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.modbus4j.exception.ModbusInitException;
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+
+/*
+ * A Modbus UDP master for lossy links.
+ *
+ * Responses are matched to their requests by MBAP transaction id, so late
+ * and duplicate datagrams are dropped. Instead of waiting for the whole
+ * timeout, an attempt sends its datagram once more when no response came
+ * within the configured percentile of the recent response times. The copy
+ * has a transaction id of its own, so each response time is measured from
+ * the datagram it answers and the percentile does not creep up. The share
+ * of datagrams that got no answer is kept as the endpoint's loss rate.
+ *
+ * */
+class HedgedUdpMaster extends MbapMaster {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(HedgedUdpMaster.class);
+	}
+
+	static final int SAMPLES = 200;
+	static final int MIN_SAMPLES = 20;
+	private static final int UPDATE_EVERY = 10;
+
+	private final double percentile;
+	private final ResponseTimes times = new ResponseTimes(SAMPLES);
+	private int sinceUpdate;
+	private volatile long hedgeDelayNanos;
+
+	private volatile DatagramSocket socket;
+	private volatile boolean closed;
+
+	private long sent;
+	private long received;
+	private long hedged;
+
+	/**
+	 * @param percentile
+	 *            the percentile of the response times after which a
+	 *            datagram is sent again, between 0 and 1
+	 */
+	HedgedUdpMaster(ScheduledExecutorService timer, String host, int port, int maxInFlight, double percentile) {
+		super(timer, host, port, maxInFlight);
+		this.percentile = percentile;
+	}
+
+	@Override
+	public void init() throws ModbusInitException {
+		final DatagramSocket s;
+		try {
+			s = new DatagramSocket();
+		} catch (IOException e) {
+			throw new ModbusInitException(e);
+		}
+		try {
+			s.connect(new InetSocketAddress(host, port));
+		} catch (IOException | RuntimeException e) {
+			s.close();
+			throw new ModbusInitException(e);
+		}
+		socket = s;
+
+		closed = false;
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readResponses(s);
+			}
+		}, "modbus udp reader " + host + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
+
+		initialized = true;
+		connected = true;
+	}
+
+	@Override
+	void write(byte[] frame) throws IOException {
+		socket.send(new DatagramPacket(frame, frame.length));
+		synchronized (this) {
+			sent++;
+		}
+	}
+
+	private void readResponses(DatagramSocket s) {
+		byte[] buf = new byte[MBAP_HEADER_LENGTH + MAX_ADU_LENGTH];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		while (!closed) {
+			try {
+				packet.setLength(buf.length);
+				s.receive(packet);
+			} catch (IOException e) {
+				if (!closed) {
+					LOGGER.warn("socket to " + host + ":" + port + " failed: " + e.getMessage());
+					close(new ModbusTransportException(e));
+				}
+				return;
+			}
+
+			int length;
+			try {
+				if (packet.getLength() < MBAP_HEADER_LENGTH) {
+					throw new IOException("short datagram");
+				}
+				length = checkHeader(buf[4], buf[5]);
+				if (packet.getLength() < MBAP_HEADER_LENGTH + length) {
+					throw new IOException("truncated datagram");
+				}
+			} catch (IOException e) {
+				LOGGER.debug("dropping datagram from " + host + ":" + port + ": " + e.getMessage());
+				continue;
+			}
+			synchronized (this) {
+				received++;
+			}
+			int id = ((buf[0] & 0xff) << 8) | (buf[1] & 0xff);
+			received(id, Arrays.copyOfRange(buf, MBAP_HEADER_LENGTH, MBAP_HEADER_LENGTH + length));
+		}
+	}
+
+	@Override
+	long getHedgeDelayNanos() {
+		return hedgeDelayNanos;
+	}
+
+	@Override
+	void writeAgain(byte[] frame) throws IOException {
+		synchronized (this) {
+			hedged++;
+		}
+		write(frame);
+	}
+
+	@Override
+	void responded(long nanos) {
+		times.add(nanos);
+		synchronized (this) {
+			if (times.size() < MIN_SAMPLES || ++sinceUpdate < UPDATE_EVERY) {
+				return;
+			}
+			sinceUpdate = 0;
+		}
+		hedgeDelayNanos = times.percentile(percentile);
+	}
+
+	/**
+	 * @return the share of datagrams without a response since the last
+	 *         call, between 0 and 1
+	 */
+	synchronized double takeLossRate() {
+		double loss = sent > 0 ? Math.max(0, 1 - (double) received / sent) : 0;
+		sent = 0;
+		received = 0;
+		return loss;
+	}
+
+	/**
+	 * @return the datagrams sent again since the last call
+	 */
+	synchronized long takeHedged() {
+		long h = hedged;
+		hedged = 0;
+		return h;
+	}
+
+	@Override
+	void close(ModbusTransportException cause) {
+		closed = true;
+		DatagramSocket s = socket;
+		if (s != null) {
+			s.close();
+		}
+		failPending(cause);
+	}
+}
@@ -0,0 +1,82 @@
+package modbus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * The address ranges of a device that must never be read.
+ *
+ * The read planner does not bridge a gap between points if the gap contains
+ * one of these addresses. The ranges come from the device's "illegal
+ * addresses" attribute, for example "HOLDING 100-199, INPUT 5".
+ *
+ * */
+class IllegalAddresses {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(IllegalAddresses.class);
+	}
+
+	// register range -> (first address -> last address)
+	private final Map<Integer, TreeMap<Integer, Integer>> ranges = new HashMap<Integer, TreeMap<Integer, Integer>>();
+
+	static IllegalAddresses parse(String spec) {
+		IllegalAddresses illegal = new IllegalAddresses();
+		if (spec == null) {
+			return illegal;
+		}
+		for (String entry : spec.split(",")) {
+			String[] parts = entry.trim().split("\\s+");
+			if (parts.length == 1 && parts[0].isEmpty()) {
+				continue;
+			}
+			try {
+				PointType type = PointType.valueOf(parts[0].toUpperCase());
+				String[] bounds = parts[1].split("-");
+				int first = Integer.parseInt(bounds[0].trim());
+				int last = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : first;
+				illegal.add(PointType.getPointTypeInt(type), first, last);
+			} catch (RuntimeException e) {
+				LOGGER.warn("invalid illegal address range: " + entry);
+			}
+		}
+		return illegal;
+	}
+
+	synchronized void add(int range, int first, int last) {
+		TreeMap<Integer, Integer> map = ranges.get(range);
+		if (map == null) {
+			map = new TreeMap<Integer, Integer>();
+			ranges.put(range, map);
+		}
+		Integer end = map.get(first);
+		map.put(first, end != null ? Math.max(end, last) : last);
+	}
+
+	/**
+	 * @return true if any address between first and last, inclusive, must
+	 *         not be read
+	 */
+	synchronized boolean intersects(int range, int first, int last) {
+		if (last < first) {
+			return false;
+		}
+		TreeMap<Integer, Integer> map = ranges.get(range);
+		if (map == null) {
+			return false;
+		}
+		Map.Entry<Integer, Integer> floor = map.floorEntry(last);
+		while (floor != null) {
+			if (floor.getValue() >= first) {
+				return true;
+			}
+			floor = map.lowerEntry(floor.getKey());
+		}
+		return false;
+	}
+}
@@ -1,5 +1,8 @@
 package modbus;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.Action;
@@ -26,11 +29,22 @@ public class IpConnection extends ModbusConnection {
 	static final String ATTR_NAME = "name";
 	static final String ATTR_TRANSPORT_TYPE = "transport type";
 	static final String ATTR_PORT = "port";
+	static final String ATTR_MAX_REQUESTS_IN_FLIGHT = "max requests in flight";
+	static final String ATTR_USE_EVENT_LOOP = "use event loop";
+	static final String ATTR_SOCKETS = "sockets";
+	static final String ATTR_UDP_HEDGE_PERCENTILE = "udp hedge percentile";
 	static final String ADD_IP_DEVICE_ACTION = "add ip device";
+	static final String STAT_TRANSPORT_SETTINGS = "transport settings";
 
 	IpTransportType transType;
 	String host;
 	int port;
+	int maxInFlight = 1;
+	boolean useEventLoop;
+	int sockets = 1;
+	// 0 for the plain UDP master
+	double udpHedgePercentile;
+	volatile TransportRegistry.Transport transport;
 
 	IpConnection(ModbusLink link, Node node) {
 		super(link, node);
@@ -50,15 +64,56 @@ public class IpConnection extends ModbusConnection {
 		readIpAttributes();
 		readMasterAttributes();
 
+		transport = link.transports.acquire(getTransportKey(), getTransportSettings(), new TransportRegistry.Factory() {
+			@Override
+			public ModbusMaster create() {
+				return createMaster();
+			}
+		});
+		if (transport == null) {
+			return null;
+		}
+		showTransportSettings(transport);
+		master = transport.master;
+		return master;
+	}
+
+	/*
+	 * Shows the settings the master runs with. A shared master keeps those of
+	 * the first connection to it.
+	 */
+	private void showTransportSettings(TransportRegistry.Transport t) {
+		String shown = t.settings.toString();
+		if (!t.settings.equals(getTransportSettings())) {
+			shown += ", shared, this connection's settings are not used";
+		}
+		getStatistics().set(STAT_TRANSPORT_SETTINGS, shown);
+	}
+
+	/*
+	 * Creates the master of the endpoint, for the first connection to it.
+	 */
+	private ModbusMaster createMaster() {
+		ModbusMaster master;
 		IpParameters params;
 		switch (transType) {
 		case TCP:
-			params = new IpParameters();
-			params.setHost(host);
-			params.setPort(port);
-			master = modbusFactory.createTcpMaster(params, true);
+			if (sockets > 1) {
+				List<ModbusMaster> pool = new ArrayList<ModbusMaster>();
+				for (int i = 0; i < sockets; i++) {
+					pool.add(createTcpMaster());
+				}
+				master = new PooledMaster(pool);
+			} else {
+				master = createTcpMaster();
+			}
 			break;
 		case UDP:
+			if (udpHedgePercentile > 0) {
+				master = new HedgedUdpMaster(link.executors.timer, host, port, maxInFlight,
+						Math.min(udpHedgePercentile, 100) / 100);
+				break;
+			}
 			params = new IpParameters();
 			params.setHost(host);
 			params.setPort(port);
@@ -68,7 +123,7 @@ public class IpConnection extends ModbusConnection {
 			return null;
 		}
 
-		writeMasterParameters();
+		writeMasterParameters(master);
 
 		try {
 			master.init();
@@ -79,22 +134,74 @@ public class IpConnection extends ModbusConnection {
 			} catch (Exception e1) {
 				LOGGER.debug(e1.getMessage());
 			}
-			master = null;
+			return null;
 		}
 
-		if (master != null && master.isInitialized()) {
-			link.masters.add(master);
+		if (master.isInitialized()) {
 			return master;
-		} else {
-			if (master != null) {
-				try {
-					master.destroy();
-				} catch (Exception e1) {
-				}
-			}
-			master = null;
-			return null;
 		}
+		try {
+			master.destroy();
+		} catch (Exception e1) {
+		}
+		return null;
+	}
+
+	private ModbusMaster createTcpMaster() {
+		if (useEventLoop) {
+			return new NioTcpMaster(link.eventLoop, link.executors.timer, host, port, maxInFlight);
+		} else if (maxInFlight > 1) {
+			return new PipelinedTcpMaster(link.executors.timer, host, port, maxInFlight);
+		}
+		IpParameters params = new IpParameters();
+		params.setHost(host);
+		params.setPort(port);
+		return modbusFactory.createTcpMaster(params, true);
+	}
+
+	TransportRegistry.Key getTransportKey() {
+		return new TransportRegistry.Key(transType, host, port);
+	}
+
+	TransportRegistry.Settings getTransportSettings() {
+		return new TransportRegistry.Settings(timeout, retries, maxInFlight, sockets, useEventLoop,
+				udpHedgePercentile, maxRequestRate, requestBurst, minRequestGap);
+	}
+
+	@Override
+	void releaseMaster() {
+		if (transport == null) {
+			super.releaseMaster();
+			return;
+		}
+		link.transports.release(transport);
+		transport = null;
+		master = null;
+	}
+
+	/*
+	 * The connections to one endpoint queue their requests in its lanes, so
+	 * a write of one goes ahead of the polls of all.
+	 */
+	@Override
+	RequestQueue.Endpoint getEndpoint() {
+		TransportRegistry.Transport t = transport;
+		return t != null ? t.endpoint : super.getEndpoint();
+	}
+
+	@Override
+	Object getScheduleKey() {
+		return transType != null && host != null ? getTransportKey() : this;
+	}
+
+	/*
+	 * The master of a shared transport was created with the settings of the
+	 * first connection to it.
+	 */
+	@Override
+	int getPollParallelism() {
+		TransportRegistry.Transport t = transport;
+		return t != null ? t.settings.getParallelism() : maxInFlight * sockets;
 	}
 
 	String getAddDeviceActionName() {
@@ -124,6 +231,12 @@ public class IpConnection extends ModbusConnection {
 		act.addParameter(new Parameter(ATTR_TRANSPORT_TYPE, ValueType.makeEnum(Util.enumNames(IpTransportType.class))));
 		act.addParameter(new Parameter(ATTR_HOST, ValueType.STRING, node.getAttribute(ATTR_HOST)));
 		act.addParameter(new Parameter(ATTR_PORT, ValueType.NUMBER, node.getAttribute(ATTR_PORT)));
+		act.addParameter(new Parameter(ATTR_MAX_REQUESTS_IN_FLIGHT, ValueType.NUMBER,
+				node.getAttribute(ATTR_MAX_REQUESTS_IN_FLIGHT)));
+		act.addParameter(new Parameter(ATTR_USE_EVENT_LOOP, ValueType.BOOL, node.getAttribute(ATTR_USE_EVENT_LOOP)));
+		act.addParameter(new Parameter(ATTR_SOCKETS, ValueType.NUMBER, node.getAttribute(ATTR_SOCKETS)));
+		act.addParameter(new Parameter(ATTR_UDP_HEDGE_PERCENTILE, ValueType.NUMBER,
+				node.getAttribute(ATTR_UDP_HEDGE_PERCENTILE)));
 
 		act.addParameter(new Parameter(ATTR_TIMEOUT, ValueType.NUMBER, node.getAttribute(ATTR_TIMEOUT)));
 		act.addParameter(new Parameter(ATTR_RETRIES, ValueType.NUMBER, node.getAttribute(ATTR_RETRIES)));
@@ -137,6 +250,7 @@ public class IpConnection extends ModbusConnection {
 				new Parameter(ATTR_DISCARD_DATA_DELAY, ValueType.NUMBER, node.getAttribute(ATTR_DISCARD_DATA_DELAY)));
 		act.addParameter(new Parameter(ATTR_USE_MULTIPLE_WRITE_COMMAND, ValueType.makeEnum(MULTIPLE_WRITE_COMMAND_OPTIONS),
 				node.getAttribute(ATTR_USE_MULTIPLE_WRITE_COMMAND)));
+		addRateLimitParameters(act, node);
 
 		return act;
 	}
@@ -192,12 +306,24 @@ public class IpConnection extends ModbusConnection {
 		transType = IpTransportType.valueOf(node.getAttribute(ATTR_TRANSPORT_TYPE).getString().toUpperCase());
 		host = node.getAttribute(ATTR_HOST).getString();
 		port = node.getAttribute(ATTR_PORT).getNumber().intValue();
+		Value inflight = node.getAttribute(ATTR_MAX_REQUESTS_IN_FLIGHT);
+		maxInFlight = inflight != null ? Math.max(1, inflight.getNumber().intValue()) : 1;
+		Value eventloop = node.getAttribute(ATTR_USE_EVENT_LOOP);
+		useEventLoop = eventloop != null && eventloop.getBool();
+		Value socks = node.getAttribute(ATTR_SOCKETS);
+		sockets = socks != null ? Math.max(1, socks.getNumber().intValue()) : 1;
+		Value hedge = node.getAttribute(ATTR_UDP_HEDGE_PERCENTILE);
+		udpHedgePercentile = hedge != null ? Math.max(0, hedge.getNumber().doubleValue()) : 0;
 	}
 
 	void writeIpAttributes() {
 		node.setAttribute(ATTR_TRANSPORT_TYPE, new Value(transType.toString()));
 		node.setAttribute(ATTR_HOST, new Value(host));
 		node.setAttribute(ATTR_PORT, new Value(port));
+		node.setAttribute(ATTR_MAX_REQUESTS_IN_FLIGHT, new Value(maxInFlight));
+		node.setAttribute(ATTR_USE_EVENT_LOOP, new Value(useEventLoop));
+		node.setAttribute(ATTR_SOCKETS, new Value(sockets));
+		node.setAttribute(ATTR_UDP_HEDGE_PERCENTILE, new Value(udpHedgePercentile));
 	}
 
 	void readIpParameters(ActionResult event) {
@@ -205,6 +331,12 @@ public class IpConnection extends ModbusConnection {
 				.valueOf(event.getParameter(ATTR_TRANSPORT_TYPE, ValueType.STRING).getString().toUpperCase());
 		host = event.getParameter(ATTR_HOST, ValueType.STRING).getString();
 		port = event.getParameter(ATTR_PORT, ValueType.NUMBER).getNumber().intValue();
+		maxInFlight = Math.max(1,
+				event.getParameter(ATTR_MAX_REQUESTS_IN_FLIGHT, new Value(1)).getNumber().intValue());
+		useEventLoop = event.getParameter(ATTR_USE_EVENT_LOOP, new Value(false)).getBool();
+		sockets = Math.max(1, event.getParameter(ATTR_SOCKETS, new Value(1)).getNumber().intValue());
+		udpHedgePercentile = Math.max(0,
+				event.getParameter(ATTR_UDP_HEDGE_PERCENTILE, new Value(0)).getNumber().doubleValue());
 	}
 
 	public String getHost() {
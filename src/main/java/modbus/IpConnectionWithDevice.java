@@ -63,14 +63,28 @@ public class IpConnectionWithDevice extends IpConnection {
 
 	@Override
 	void init() {
+		synchronized (masterLock) {
+			stopped = false;
+		}
 		master = getMaster();
 		if (master != null) {
 			statnode.setValue(new Value(NODE_STATUS_CONNECTED));
-			retryDelay = 1;
+			resetReconnectBackoff();
 		} else {
 			statnode.setValue(new Value(NODE_STATUS_CONNECTION_ESTABLISHMENT_FAILED));
 			scheduleReconnect();
 		}
+		requests.startSampling();
+	}
+
+	/*
+	 * The devices of a legacy connection hold its actions, so they are set
+	 * up again on every reconnect.
+	 */
+	@Override
+	void reconnect() {
+		stop();
+		restoreLastSession();
 	}
 
 	synchronized SlaveNode addSlave(Node slaveNode) {
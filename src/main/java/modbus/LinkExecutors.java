@@ -0,0 +1,138 @@
+package modbus;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dsa.iot.dslink.node.Node;
+
+/*
+ * The thread pools shared by all connections and local slaves of the link.
+ *
+ * Each pool is bounded and names its threads after itself, and idle threads
+ * end after a while, so the thread count does not grow with the number of
+ * connections. A pool that is full rejects new work; its callers treat that
+ * like a skipped poll or a failed request. The active threads and the queue
+ * depth of every pool are published below the link's statistics.
+ *
+ * Requests on a blocking master are the exception: each socket has a worker
+ * of its own, so a gateway that stops answering ties up only its own
+ * thread. Their number is published too.
+ *
+ * */
+class LinkExecutors {
+	// a poll mostly waits for its responses, and a connection runs only as many as it has requests in flight
+	static final int POLL_THREADS = 64;
+	static final int POLL_QUEUE = 1000;
+	static final int RECONNECT_THREADS = 2;
+	// only runs short delayed work: request timeouts, sampling statistics, and handing work over to the other pools
+	static final int TIMER_THREADS = 1;
+	// a started listener keeps its thread until it stops
+	static final int LISTENER_THREADS = 64;
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+	private static final long METRICS_PERIOD_SECONDS = 10;
+
+	final ThreadPoolExecutor polling;
+	final ScheduledThreadPoolExecutor reconnect;
+	final ScheduledThreadPoolExecutor timer;
+	final ThreadPoolExecutor listeners;
+
+	// the live workers of blocking masters
+	private final AtomicInteger requestThreads = new AtomicInteger();
+	private final ThreadFactory requestThreadFactory = newThreadFactory("request");
+	private Statistics statistics;
+
+	LinkExecutors() {
+		polling = newPool("poll", POLL_THREADS, new ArrayBlockingQueue<Runnable>(POLL_QUEUE));
+		listeners = new ThreadPoolExecutor(0, LISTENER_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), newThreadFactory("listener"));
+
+		reconnect = new ScheduledThreadPoolExecutor(RECONNECT_THREADS, newThreadFactory("reconnect"));
+		reconnect.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+		reconnect.allowCoreThreadTimeOut(true);
+		reconnect.setRemoveOnCancelPolicy(true);
+
+		timer = new ScheduledThreadPoolExecutor(TIMER_THREADS, newThreadFactory("timer"));
+		timer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+		timer.allowCoreThreadTimeOut(true);
+		// most request timeouts are cancelled by the response
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private static ThreadPoolExecutor newPool(String name, int threads, BlockingQueue<Runnable> queue) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+				newThreadFactory(name));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/*
+	 * A worker of its own for one socket of a blocking master. It runs one
+	 * task at a time, and its thread ends after a while without work.
+	 */
+	ThreadPoolExecutor newRequestWorker() {
+		ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						return requestThreadFactory.newThread(new Runnable() {
+							@Override
+							public void run() {
+								requestThreads.incrementAndGet();
+								try {
+									r.run();
+								} finally {
+									requestThreads.decrementAndGet();
+								}
+							}
+						});
+					}
+				});
+		worker.allowCoreThreadTimeOut(true);
+		return worker;
+	}
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "modbus-" + name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/*
+	 * Publishes the metrics of the pools below the node, periodically. The
+	 * timer runs it, so a reconnect that is slow to connect does not hold
+	 * them up.
+	 */
+	void publishMetrics(Node node) {
+		statistics = new Statistics(node);
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				publish("poll", polling);
+				statistics.set("request threads", requestThreads.get());
+				publish("reconnect", reconnect);
+				publish("timer", timer);
+				publish("listener", listeners);
+			}
+		}, 0, METRICS_PERIOD_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private void publish(String name, ThreadPoolExecutor pool) {
+		statistics.set(name + " threads active", pool.getActiveCount());
+		statistics.set(name + " queue depth", pool.getQueue().size());
+	}
+}
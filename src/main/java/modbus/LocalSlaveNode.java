@@ -4,7 +4,8 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
@@ -13,7 +14,6 @@ import org.dsa.iot.dslink.node.actions.ActionResult;
 import org.dsa.iot.dslink.node.actions.Parameter;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
-import org.dsa.iot.dslink.util.Objects;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.serotonin.modbus4j.BasicProcessImage;
@@ -39,7 +39,7 @@ public class LocalSlaveNode extends LocalSlaveFolder {
 	private Node statusNode;
 
 	private ModbusSlaveSet activeListener;
-	private final ScheduledThreadPoolExecutor listenerStpe;
+	private final Executor listenerStpe;
 
 	protected BasicProcessImage processImage;
 	protected BasicProcessImageListener processImageListener;
@@ -51,7 +51,7 @@ public class LocalSlaveNode extends LocalSlaveFolder {
 		this.root = this;
 		this.statusNode = getStatusNode();
 
-		this.listenerStpe = Objects.createDaemonThreadPool();
+		this.listenerStpe = link.executors.listeners;
 
 		this.processImage = getProcessImage();
 		this.processImageListener = getProcessImageListener();
@@ -139,37 +139,42 @@ public class LocalSlaveNode extends LocalSlaveFolder {
 
 	void startListening() {
 		if (listenerStpe != null) {
-
-			listenerStpe.execute(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						statusNode.setValue(new Value(STATUS_START_LISTENING));
-						activeListener.start();
-					} catch (ModbusInitException e) {
-						e.printStackTrace();
+			try {
+				listenerStpe.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							statusNode.setValue(new Value(STATUS_START_LISTENING));
+							activeListener.start();
+						} catch (ModbusInitException e) {
+							e.printStackTrace();
+						}
 					}
-				}
-			});
-
+				});
+			} catch (RejectedExecutionException e) {
+				LOGGER.error("too many listeners, not starting " + node.getName());
+			}
 		}
 	}
 
 	void stopListening() {
 		if (listenerStpe != null) {
-
-			listenerStpe.execute(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						statusNode.setValue(new Value(STATUS_STOP_LISTENING));
-						activeListener.stop();
-					} catch (Exception e) {
-						e.printStackTrace();
+			try {
+				listenerStpe.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							statusNode.setValue(new Value(STATUS_STOP_LISTENING));
+							activeListener.stop();
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
 					}
-				}
-			});
-
+				});
+			} catch (RejectedExecutionException e) {
+				LOGGER.error("too many listeners, stopping " + node.getName() + " in place");
+				activeListener.stop();
+			}
 		}
 	}
 
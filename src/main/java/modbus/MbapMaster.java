@@ -0,0 +1,458 @@
+package modbus;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.modbus4j.ModbusMaster;
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+import com.serotonin.modbus4j.ip.xa.XaMessageRequest;
+import com.serotonin.modbus4j.msg.ModbusRequest;
+import com.serotonin.modbus4j.msg.ModbusResponse;
+import com.serotonin.modbus4j.sero.util.queue.ByteQueue;
+
+/*
+ * A Modbus TCP master that keeps several requests in flight on one
+ * connection and matches the responses to them by MBAP transaction id.
+ *
+ * Subclasses do the socket I/O: they write the frames, and hand every
+ * response frame they receive to received(). Each attempt of a request
+ * times out after the master's timeout on its own, unless the request comes
+ * with its own timeout and retries. No thread waits for a response: the
+ * thread that reads it completes the request, and the link's timer runs the
+ * timeouts and retries.
+ *
+ * */
+abstract class MbapMaster extends ModbusMaster implements ConcurrentMaster, TimedMaster {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(MbapMaster.class);
+	}
+
+	// transaction id, protocol id, length
+	static final int MBAP_HEADER_LENGTH = 6;
+	static final int MAX_ADU_LENGTH = 260;
+
+	/*
+	 * A transaction on the wire, through all its attempts. The response, the
+	 * timeout of the attempt and the hedge race each other, and whichever
+	 * comes first wins.
+	 */
+	private class Exchange implements Runnable {
+		final RequestQueue.Transaction transaction;
+		final long timeoutNanos;
+		private int retries;
+		private boolean done;
+		// the transaction id and start of the current attempt
+		private int id;
+		private long sent;
+		// the same for its hedge, -1 until it is sent
+		private int hedgeId = -1;
+		private long hedgeSent;
+		private ScheduledFuture<?> timeoutTask;
+		private ScheduledFuture<?> hedgeTask;
+
+		Exchange(RequestQueue.Transaction transaction) {
+			this.transaction = transaction;
+			this.timeoutNanos = TimeUnit.MILLISECONDS
+					.toNanos(Math.max(1, transaction.timeout > 0 ? transaction.timeout : getTimeout()));
+			this.retries = transaction.retries >= 0 ? transaction.retries : getRetries();
+		}
+
+		void start() {
+			try {
+				transaction.request.validate(MbapMaster.this);
+			} catch (ModbusTransportException e) {
+				fail(e);
+				return;
+			}
+			transaction.sending();
+			attempt();
+		}
+
+		private void attempt() {
+			if (!initialized) {
+				fail(new ModbusTransportException("not connected", transaction.request.getSlaveId()));
+				return;
+			}
+			byte[] f;
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				id = register(this);
+				hedgeId = -1;
+				f = new XaMessageRequest(transaction.request, id).getMessageData();
+				sent = System.nanoTime();
+				try {
+					timeoutTask = timer.schedule(this, timeoutNanos, TimeUnit.NANOSECONDS);
+					long hedge = getHedgeDelayNanos();
+					if (hedge > 0 && hedge < timeoutNanos) {
+						hedgeTask = timer.schedule(new Runnable() {
+							@Override
+							public void run() {
+								hedge();
+							}
+						}, hedge, TimeUnit.NANOSECONDS);
+					}
+				} catch (RejectedExecutionException e) {
+					f = null;
+				}
+			}
+			if (f == null) {
+				fail(new ModbusTransportException("timer is shut down", transaction.request.getSlaveId()));
+				return;
+			}
+			try {
+				write(f);
+			} catch (IOException e) {
+				close(new ModbusTransportException(e, transaction.request.getSlaveId()));
+			}
+		}
+
+		/*
+		 * Sends the request of the attempt once more, if it is still
+		 * unanswered. The copy gets its own transaction id, so the response
+		 * time is measured from the copy that was answered.
+		 */
+		private void hedge() {
+			byte[] f;
+			synchronized (this) {
+				if (done || pending.get(id) != this) {
+					return;
+				}
+				hedgeId = register(this);
+				f = new XaMessageRequest(transaction.request, hedgeId).getMessageData();
+				hedgeSent = System.nanoTime();
+			}
+			try {
+				writeAgain(f);
+			} catch (IOException e) {
+				close(new ModbusTransportException(e, transaction.request.getSlaveId()));
+			}
+		}
+
+		/*
+		 * The timeout of the current attempt.
+		 */
+		@Override
+		public void run() {
+			synchronized (this) {
+				// a response that is being handled has removed the attempt already
+				if (done || !pending.remove(id, this)) {
+					return;
+				}
+				removeHedge();
+				cancelTimers();
+				if (retries-- > 0) {
+					LOGGER.debug("retrying transaction " + id + " to " + host + ":" + port);
+				} else {
+					done = true;
+				}
+			}
+			if (done) {
+				completed(null, new ModbusTransportException("request timed out", transaction.request.getSlaveId()));
+			} else {
+				attempt();
+			}
+		}
+
+		/*
+		 * @param answered
+		 *            the transaction id of the copy that was answered
+		 */
+		void respond(int answered, ModbusResponse response) {
+			long elapsed;
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				done = true;
+				cancelTimers();
+				elapsed = System.nanoTime() - (answered == hedgeId ? hedgeSent : sent);
+				// a late answer to the other copy is dropped as unknown
+				pending.remove(id, this);
+				removeHedge();
+			}
+			responded(elapsed);
+			completed(response, null);
+		}
+
+		void fail(ModbusTransportException error) {
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				done = true;
+				cancelTimers();
+				pending.remove(id, this);
+				removeHedge();
+			}
+			completed(null, error);
+		}
+
+		private void removeHedge() {
+			if (hedgeId >= 0) {
+				pending.remove(hedgeId, this);
+				hedgeId = -1;
+			}
+		}
+
+		private void cancelTimers() {
+			if (timeoutTask != null) {
+				timeoutTask.cancel(false);
+				timeoutTask = null;
+			}
+			if (hedgeTask != null) {
+				hedgeTask.cancel(false);
+				hedgeTask = null;
+			}
+		}
+
+		private void completed(ModbusResponse response, ModbusTransportException error) {
+			transaction.completed(response, error);
+			released();
+		}
+	}
+
+	final String host;
+	final int port;
+	private final ScheduledExecutorService timer;
+	private final int maxInFlight;
+	// in order of priority, like the request queue of a blocking master
+	private final Queue<RequestQueue.Transaction> waiting = new PriorityQueue<RequestQueue.Transaction>();
+	private int inFlight;
+	// true while a thread runs the dispatch loop
+	private boolean dispatching;
+	private final ConcurrentMap<Integer, Exchange> pending = new ConcurrentHashMap<Integer, Exchange>();
+	private int nextTransactionId;
+
+	/**
+	 * @param timer
+	 *            runs the timeouts and hedges of the requests
+	 */
+	MbapMaster(ScheduledExecutorService timer, String host, int port, int maxInFlight) {
+		this.timer = timer;
+		this.host = host;
+		this.port = port;
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	/*
+	 * Writes a complete request frame to the connection.
+	 */
+	abstract void write(byte[] frame) throws IOException;
+
+	/*
+	 * Closes the connection and fails every request in flight.
+	 */
+	abstract void close(ModbusTransportException cause);
+
+	/*
+	 * How long an attempt waits before its request is sent once more, under
+	 * a transaction id of its own, or 0 to wait for the whole timeout.
+	 * Whichever copy is answered first completes the attempt.
+	 */
+	long getHedgeDelayNanos() {
+		return 0;
+	}
+
+	/*
+	 * Sends the hedge of an attempt, after its hedge delay.
+	 */
+	void writeAgain(byte[] frame) throws IOException {
+		write(frame);
+	}
+
+	/*
+	 * Called with the response time of an attempt, from the sending of the
+	 * copy that was answered to its response.
+	 */
+	void responded(long nanos) {
+	}
+
+	@Override
+	public void destroy() {
+		close(new ModbusTransportException("master destroyed"));
+	}
+
+	/**
+	 * Queues the transaction, and sends it as soon as fewer than the maximum
+	 * are in flight and its rate limit slot comes up. The waiting
+	 * transactions go out in order of priority, so a write waits for at most
+	 * the requests already in flight. No thread waits for the response: the
+	 * transaction is completed by the thread that reads the response, or by
+	 * the link's timer when it times out.
+	 */
+	void submit(RequestQueue.Transaction transaction) {
+		synchronized (waiting) {
+			waiting.add(transaction);
+		}
+		dispatch();
+	}
+
+	/*
+	 * Sends waiting transactions while there is room in flight. Only one
+	 * thread runs the loop at a time. A transaction that completes while it
+	 * runs, also one that fails right away inside it, only frees its place,
+	 * and the loop takes the next one, so failing a long queue does not nest
+	 * a call per transaction.
+	 */
+	private void dispatch() {
+		synchronized (waiting) {
+			if (dispatching) {
+				return;
+			}
+			dispatching = true;
+		}
+		boolean drained = false;
+		try {
+			while (true) {
+				RequestQueue.Transaction t;
+				synchronized (waiting) {
+					if (inFlight >= maxInFlight || waiting.isEmpty()) {
+						dispatching = false;
+						drained = true;
+						return;
+					}
+					t = waiting.poll();
+					inFlight++;
+				}
+				if (t.start()) {
+					send(new Exchange(t));
+				} else {
+					// cancelled while it waited, without a rate limit slot
+					synchronized (waiting) {
+						inFlight--;
+					}
+				}
+			}
+		} finally {
+			if (!drained) {
+				synchronized (waiting) {
+					dispatching = false;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Books the transaction's rate limit slot, now that it leaves the queue in
+	 * order of priority, and sends it once the slot comes up. It keeps its
+	 * place in flight meanwhile.
+	 */
+	private void send(final Exchange e) {
+		long delay = e.transaction.reserveSlot();
+		if (delay <= 0) {
+			e.start();
+			return;
+		}
+		try {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					e.start();
+				}
+			}, delay, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException ex) {
+			e.fail(new ModbusTransportException("timer is shut down", e.transaction.request.getSlaveId()));
+		}
+	}
+
+	private void released() {
+		synchronized (waiting) {
+			inFlight--;
+		}
+		// returns at once if the loop is running, on this thread or another
+		dispatch();
+	}
+
+	@Override
+	public ModbusResponse sendImpl(ModbusRequest request) throws ModbusTransportException {
+		return send(request, getTimeout(), getRetries());
+	}
+
+	@Override
+	public ModbusResponse send(ModbusRequest request, int timeout, int retries) throws ModbusTransportException {
+		RequestQueue.Transaction t = new RequestQueue.Transaction(request, RequestQueue.Priority.READ, timeout,
+				retries);
+		submit(t);
+		return t.await();
+	}
+
+	/*
+	 * Picks the next transaction id that no request in flight uses.
+	 */
+	private synchronized int register(Exchange e) {
+		while (true) {
+			nextTransactionId = (nextTransactionId + 1) & 0xffff;
+			if (pending.putIfAbsent(nextTransactionId, e) == null) {
+				return nextTransactionId;
+			}
+		}
+	}
+
+	/*
+	 * Hands a response to the request with the same transaction id, on the
+	 * thread that read it.
+	 *
+	 * @param data
+	 *            the unit id and the PDU
+	 */
+	void received(int id, byte[] data) {
+		Exchange e = pending.remove(id);
+		if (e == null) {
+			LOGGER.debug("response to unknown or expired transaction " + id + " from " + host + ":" + port);
+			return;
+		}
+		ModbusRequest request = e.transaction.request;
+		try {
+			ModbusResponse response = ModbusResponse.createModbusResponse(new ByteQueue(data));
+			if (response.getSlaveId() != request.getSlaveId()
+					|| response.getFunctionCode() != request.getFunctionCode()) {
+				e.fail(new ModbusTransportException("response does not match transaction " + id,
+						request.getSlaveId()));
+			} else {
+				e.respond(id, response);
+			}
+		} catch (ModbusTransportException ex) {
+			e.fail(ex);
+		}
+	}
+
+	/*
+	 * Marks the master uninitialized, so the connection reconnects, and fails
+	 * every request in flight.
+	 */
+	void failPending(ModbusTransportException cause) {
+		initialized = false;
+		connected = false;
+		for (Integer id : pending.keySet()) {
+			Exchange e = pending.remove(id);
+			if (e != null) {
+				e.fail(cause);
+			}
+		}
+	}
+
+	/**
+	 * @return the length of the unit id and PDU that follow the header
+	 */
+	static int checkHeader(int lengthHigh, int lengthLow) throws IOException {
+		int length = ((lengthHigh & 0xff) << 8) | (lengthLow & 0xff);
+		if (length < 2 || length > MAX_ADU_LENGTH) {
+			throw new IOException("invalid MBAP length " + length);
+		}
+		return length;
+	}
+}
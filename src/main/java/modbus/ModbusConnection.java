@@ -2,12 +2,19 @@ package modbus;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
@@ -20,7 +27,6 @@ import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.serializer.Deserializer;
 import org.dsa.iot.dslink.serializer.Serializer;
-import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.dslink.util.json.JsonObject;
@@ -29,6 +35,7 @@ import org.slf4j.LoggerFactory;
 
 import com.serotonin.modbus4j.ModbusFactory;
 import com.serotonin.modbus4j.ModbusMaster;
+import com.serotonin.modbus4j.msg.ModbusRequest;
 
 abstract public class ModbusConnection {
 	private static final Logger LOGGER;
@@ -43,6 +50,23 @@ abstract public class ModbusConnection {
 	static final String ATTR_ZERO_ON_FAILED_POLL = "zero on failed poll";
 	static final String ATTR_USE_BATCH_POLLING = "use batch polling";
 	static final String ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY = "contiguous batch requests only";
+	static final String ATTR_POLL_GROUPS = "poll groups";
+	static final String ATTR_ALIGNED_POLLING = "aligned polling";
+	static final String ATTR_ADAPTIVE_POLLING = "adaptive polling";
+	static final String ATTR_ADAPTIVE_MAX_INTERVAL = "adaptive max interval";
+
+	static final double DEFAULT_ADAPTIVE_MAX_INTERVAL = 60;
+
+	static final String ATTR_OVERRUN_POLICY = "overrun policy";
+	static final String ATTR_ILLEGAL_ADDRESSES = "illegal addresses";
+	static final String ATTR_PROBE_AFTER_SILENCE = "probe after silence";
+	static final String ATTR_PROBE_REGISTER = "probe register";
+	static final String ATTR_BREAKER_THRESHOLD = "breaker threshold";
+	static final String ATTR_DEVICE_TIMEOUT = "device timeout";
+	static final String ATTR_DEVICE_RETRIES = "device retries";
+	static final String ATTR_AUTO_TIMEOUT = "auto timeout";
+	static final String ATTR_AUTO_TIMEOUT_FACTOR = "auto timeout factor";
+	static final String ATTR_AUTO_TIMEOUT_MIN = "auto timeout min";
 
 	static final String ATTR_CONNECTION_NAME = "name";
 	static final String ATTR_TRANSPORT_TYPE = "transport type";
@@ -53,6 +77,9 @@ abstract public class ModbusConnection {
 	static final String ATTR_MAX_WRITE_REGISTER_COUNT = "max write register count";
 	static final String ATTR_DISCARD_DATA_DELAY = "discard data delay";
 	static final String ATTR_USE_MULTIPLE_WRITE_COMMAND = "use multiple write commands";
+	static final String ATTR_MAX_REQUEST_RATE = "max requests per second";
+	static final String ATTR_REQUEST_BURST = "request burst";
+	static final String ATTR_MIN_REQUEST_GAP = "min request gap (ms)";
 	
 	static final String MULTIPLE_WRITE_COMMAND_ALWAYS = "Always";
 	static final String MULTIPLE_WRITE_COMMAND_NEVER = "Never";
@@ -80,18 +107,29 @@ abstract public class ModbusConnection {
     static final String ACTION_EXPORT = "export";
     static final String ACTION_IMPORT = "import device";
 
-	static final int RETRY_DELAY_MAX = 60;
-	static final int RETRY_DELAY_STEP = 2;
+	static final long RETRY_DELAY_MIN_MS = 1000;
+	static final long RETRY_DELAY_MAX_MS = 60000;
 
 	Node node;
 	Node statnode;
 	ModbusLink link;
-	ModbusMaster master;
+	// replaced under the master lock, read without it by the requests
+	volatile ModbusMaster master;
 	final Object masterLock = new Object();
-	Set<SlaveNode> slaves;
+	// serializes the requests on a master that takes one at a time
+	private final Object sendLock = new Object();
+	// true from stop() until the next init(), guarded by the master lock
+	boolean stopped;
+	// added and removed by the devices while a reconnect goes through them
+	final Set<SlaveNode> slaves = Collections.newSetFromMap(new ConcurrentHashMap<SlaveNode, Boolean>());
 	ScheduledFuture<?> reconnectFuture = null;
+	private final AtomicBoolean connectionCheckQueued = new AtomicBoolean();
 	String name;
-	protected int retryDelay = 1;
+	protected long retryDelayMs = RETRY_DELAY_MIN_MS;
+	private Statistics statistics;
+	final CostModel costModel = new CostModel();
+	final RequestQueue requests = new RequestQueue(this);
+	private final RequestQueue.Endpoint endpoint;
 
 	int timeout;
 
@@ -101,18 +139,30 @@ abstract public class ModbusConnection {
 	int maxwrc;
 	int ddd;
 	String mw;
+	double maxRequestRate;
+	int requestBurst = 1;
+	int minRequestGap;
 
-	final ScheduledThreadPoolExecutor stpe = Objects.createDaemonThreadPool();
 	final ModbusFactory modbusFactory;
 
 	public ModbusConnection(ModbusLink link, Node node) {
         this.link = link;
         this.node = node;
+        this.endpoint = new RequestQueue.Endpoint(link.executors) {
+            @Override
+            ModbusMaster getMaster() {
+                return master;
+            }
+
+            @Override
+            Object getSendLock() {
+                return ModbusConnection.this.getSendLock();
+            }
+        };
 
         modbusFactory = new ModbusFactory();
         this.statnode = node.createChild(NODE_STATUS, true).setValueType(ValueType.STRING)
                 .setValue(new Value(NODE_STATUS_SETTINGUP)).build();
-        slaves = new HashSet<>();
         node.setAttribute(ATTR_RESTORE_TYPE, new Value("conn"));
         link.connections.add(this);
     }
@@ -146,17 +196,13 @@ abstract public class ModbusConnection {
 
 	void stop() {
 		synchronized (masterLock) {
+			stopped = true;
 			if (master != null) {
-				try {
-					master.destroy();
-					link.masters.remove(master);
-				} catch (Exception e) {
-					LOGGER.debug("error destroying last master" + e.getMessage());
-				}
-				master = null;
+				releaseMaster();
 				removeChild();
 			}
 		}
+		requests.stopSampling();
 		statnode.setValue(new Value(NODE_STATUS_CONNECTION_STOPPED));
 	}
 
@@ -187,7 +233,8 @@ abstract public class ModbusConnection {
 			if (slaveId != null && interval != null) {
 				SlaveNode sn = new SlaveNode(this, child);
 				sn.restoreLastSession();
-			} else if (child.getAction() == null && !NODE_STATUS.equals(child.getName())) {
+			} else if (child.getAction() == null && !NODE_STATUS.equals(child.getName())
+					&& !Statistics.NODE_STATISTICS.equals(child.getName())) {
 				node.removeChild(child, false);
 			}
 		}
@@ -222,17 +269,12 @@ abstract public class ModbusConnection {
 		makeStopAction();
 
 		synchronized (masterLock) {
+			stopped = false;
 			master = getMaster();
 			if (master != null) {
 				statnode.setValue(new Value(NODE_STATUS_CONNECTED));
-				retryDelay = 1;
-				act = getAddDeviceAction();
-				anode = node.getChild(getAddDeviceActionName(), true);
-				if (anode == null) {
-					node.createChild(getAddDeviceActionName(), true).setAction(act).build().setSerializable(false);
-				} else {
-					anode.setAction(act);
-				}
+				resetReconnectBackoff();
+				makeAddDeviceAction();
 			} else {
 				statnode.setValue(new Value(NODE_STATUS_CONNECTION_ESTABLISHMENT_FAILED));
 				removeChild();
@@ -242,7 +284,7 @@ abstract public class ModbusConnection {
 
 		makeExportAction();
 		makeImportAction();
-
+		requests.startSampling();
 	}
 
 	class RestartHandler implements Handler<ActionResult> {
@@ -255,8 +297,92 @@ abstract public class ModbusConnection {
 		}
 	}
 
-	public ScheduledThreadPoolExecutor getDaemonThreadPool() {
-		return stpe;
+	/*
+	 * Gives up the master. Called with the master lock held.
+	 */
+	void releaseMaster() {
+		try {
+			master.destroy();
+			link.masters.remove(master);
+		} catch (Exception e) {
+			LOGGER.debug("error destroying last master" + e.getMessage());
+		}
+		master = null;
+	}
+
+	/*
+	 * The lock that requests on the master are sent under, unless the master
+	 * takes concurrent requests. It is not the master lock, so a reconnect or
+	 * stop does not wait for a request that is stuck on the wire.
+	 */
+	Object getSendLock() {
+		return sendLock;
+	}
+
+	/*
+	 * The polls of all connections with an equal key are staggered together.
+	 */
+	Object getScheduleKey() {
+		return this;
+	}
+
+	/*
+	 * The polls of one schedule key that may run at once. A connection that
+	 * sends one request at a time would only park more poll threads.
+	 */
+	int getPollParallelism() {
+		return 1;
+	}
+
+	Executor getPollExecutor() {
+		return link.executors.polling;
+	}
+
+	/*
+	 * The lanes the requests of the connection are sent in.
+	 */
+	RequestQueue.Endpoint getEndpoint() {
+		return endpoint;
+	}
+
+	ScheduledExecutorService getTimer() {
+		return link.executors.timer;
+	}
+
+	/*
+	 * Queues a request for the master with the given priority, without
+	 * waiting for it.
+	 */
+	RequestQueue.Transaction submit(ModbusRequest request, RequestQueue.Priority priority) {
+		return requests.submit(request, priority, 0, -1);
+	}
+
+	/*
+	 * Queues a request with its own timeout and retries, 0 and -1 for the
+	 * connection's. Only the masters that implement TimedMaster take them.
+	 */
+	RequestQueue.Transaction submit(ModbusRequest request, RequestQueue.Priority priority, int timeout, int retries) {
+		return requests.submit(request, priority, timeout, retries);
+	}
+
+	/*
+	 * Queues several requests at once, so they are sent back to back, or in
+	 * parallel if the master takes concurrent requests.
+	 */
+	List<RequestQueue.Transaction> submitAll(List<ModbusRequest> batch, RequestQueue.Priority priority, int timeout,
+			int retries) {
+		List<RequestQueue.Transaction> transactions = new ArrayList<RequestQueue.Transaction>(batch.size());
+		for (ModbusRequest request : batch) {
+			transactions.add(requests.submit(request, priority, timeout, retries));
+		}
+		return transactions;
+	}
+
+	synchronized Statistics getStatistics() {
+		if (statistics == null) {
+			statistics = new Statistics(node);
+		}
+		return statistics;
 	}
 
 	public Action getRemoveAction() {
@@ -371,13 +497,8 @@ abstract public class ModbusConnection {
 			if (!connected) {
 				statnode.setValue(new Value(NODE_STATUS_CONNECTING));
 				if (master != null) {
-					try {
-						master.destroy();
-						link.masters.remove(master);
-					} catch (Exception e) {
-					}
+					releaseMaster();
 				}
-				master = null;
 				scheduleReconnect();
 			} else {
 				statnode.setValue(new Value(NODE_STATUS_CONNECTED));
@@ -385,25 +506,121 @@ abstract public class ModbusConnection {
 		}
 	}
 
+	/*
+	 * Checks the connection on the reconnect pool, for a request that failed
+	 * because the master is down. Requests complete on pool, reader and
+	 * selector threads, which must not wait for the master lock. The checks
+	 * of a burst of failures are done once.
+	 */
+	void checkConnectionLater() {
+		if (!connectionCheckQueued.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			link.executors.reconnect.execute(new Runnable() {
+				@Override
+				public void run() {
+					connectionCheckQueued.set(false);
+					checkConnection();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			connectionCheckQueued.set(false);
+			LOGGER.debug(node.getName() + ": reconnect pool is shut down, not checking the connection");
+		}
+	}
+
+	private void makeAddDeviceAction() {
+		Action act = getAddDeviceAction();
+		Node anode = node.getChild(getAddDeviceActionName(), true);
+		if (anode == null) {
+			node.createChild(getAddDeviceActionName(), true).setAction(act).build().setSerializable(false);
+		} else {
+			anode.setAction(act);
+		}
+	}
+
+	synchronized void resetReconnectBackoff() {
+		retryDelayMs = RETRY_DELAY_MIN_MS;
+	}
+
+	/*
+	 * Schedules a reconnect attempt. The delay doubles with every attempt, up
+	 * to a minute, and half of it is random, so connections that dropped
+	 * together do not all retry at the same moment.
+	 */
 	synchronized void scheduleReconnect() {
 		if (link.restoring || (reconnectFuture != null && !reconnectFuture.isDone())) {
 			return;
 		}
-		ScheduledThreadPoolExecutor reconnectStpe = Objects.getDaemonThreadPool();
-		reconnectFuture = reconnectStpe.schedule(new Runnable() {
+		long delay = retryDelayMs / 2 + ThreadLocalRandom.current().nextLong(retryDelayMs / 2 + 1);
+		reconnectFuture = link.executors.reconnect.schedule(new Runnable() {
 
 			@Override
 			public void run() {
+				synchronized (ModbusConnection.this) {
+					reconnectFuture = null;
+				}
 				Value stat = statnode.getValue();
 				if (stat == null || !(NODE_STATUS_CONNECTED.equals(stat.getString())
 						|| NODE_STATUS_SETTINGUP.equals(stat.getString()))) {
-					stop();
-					restoreLastSession();
+					reconnect();
 				}
 			}
-		}, retryDelay, TimeUnit.SECONDS);
-		if (retryDelay < RETRY_DELAY_MAX)
-			retryDelay += RETRY_DELAY_STEP;
+		}, delay, TimeUnit.MILLISECONDS);
+		retryDelayMs = Math.min(retryDelayMs * 2, RETRY_DELAY_MAX_MS);
+	}
+
+	/*
+	 * Re-creates the master only. The node tree, the devices, their compiled
+	 * points and their poll tasks are kept, and the polls resume once the
+	 * master is back. The master is created outside the master lock, since
+	 * connecting, or waiting for the connection that creates a shared
+	 * transport, would hold up every request queued meanwhile. The devices
+	 * are probed without waiting for their answers.
+	 */
+	void reconnect() {
+		synchronized (masterLock) {
+			if (stopped) {
+				return;
+			}
+			if (master != null) {
+				releaseMaster();
+			}
+		}
+		// until connected or stopped, also if creating the master throws
+		boolean retry = true;
+		try {
+			ModbusMaster m = getMaster();
+			synchronized (masterLock) {
+				if (stopped) {
+					// stopped while connecting
+					retry = false;
+					if (master != null) {
+						releaseMaster();
+					}
+					return;
+				}
+				master = m;
+				if (master != null) {
+					retry = false;
+					statnode.setValue(new Value(NODE_STATUS_CONNECTED));
+					resetReconnectBackoff();
+					makeAddDeviceAction();
+				} else {
+					statnode.setValue(new Value(NODE_STATUS_CONNECTION_ESTABLISHMENT_FAILED));
+					removeChild();
+					return;
+				}
+			}
+		} finally {
+			if (retry) {
+				scheduleReconnect();
+			}
+		}
+		for (SlaveNode sn : slaves) {
+			sn.checkDeviceConnected();
+		}
 	}
 
 	public void readMasterParameters(ActionResult event) {
@@ -415,9 +632,16 @@ abstract public class ModbusConnection {
 		maxwrc = event.getParameter(ATTR_MAX_WRITE_REGISTER_COUNT, ValueType.NUMBER).getNumber().intValue();
 		ddd = event.getParameter(ATTR_DISCARD_DATA_DELAY, ValueType.NUMBER).getNumber().intValue();
 		mw = event.getParameter(ATTR_USE_MULTIPLE_WRITE_COMMAND).getString();
+		// actions without the rate limit keep the current one
+		maxRequestRate = Math.max(0,
+				event.getParameter(ATTR_MAX_REQUEST_RATE, new Value(maxRequestRate)).getNumber().doubleValue());
+		requestBurst = Math.max(1,
+				event.getParameter(ATTR_REQUEST_BURST, new Value(requestBurst)).getNumber().intValue());
+		minRequestGap = Math.max(0,
+				event.getParameter(ATTR_MIN_REQUEST_GAP, new Value(minRequestGap)).getNumber().intValue());
 	}
 
-	public void writeMasterParameters() {
+	public void writeMasterParameters(ModbusMaster master) {
 		master.setTimeout(timeout);
 		master.setRetries(retries);
 		master.setMaxReadBitCount(maxrbc);
@@ -435,6 +659,9 @@ abstract public class ModbusConnection {
 		node.setAttribute(ATTR_MAX_WRITE_REGISTER_COUNT, new Value(maxwrc));
 		node.setAttribute(ATTR_DISCARD_DATA_DELAY, new Value(ddd));
 		node.setAttribute(ATTR_USE_MULTIPLE_WRITE_COMMAND, new Value(mw));
+		node.setAttribute(ATTR_MAX_REQUEST_RATE, new Value(maxRequestRate));
+		node.setAttribute(ATTR_REQUEST_BURST, new Value(requestBurst));
+		node.setAttribute(ATTR_MIN_REQUEST_GAP, new Value(minRequestGap));
 	}
 
 	public void readMasterAttributes() {
@@ -445,6 +672,27 @@ abstract public class ModbusConnection {
 		maxwrc = node.getAttribute(ATTR_MAX_WRITE_REGISTER_COUNT).getNumber().intValue();
 		ddd = node.getAttribute(ATTR_DISCARD_DATA_DELAY).getNumber().intValue();
 		mw = node.getAttribute(ATTR_USE_MULTIPLE_WRITE_COMMAND).getString();
+		Value rate = node.getAttribute(ATTR_MAX_REQUEST_RATE);
+		maxRequestRate = rate != null ? Math.max(0, rate.getNumber().doubleValue()) : 0;
+		Value burst = node.getAttribute(ATTR_REQUEST_BURST);
+		requestBurst = burst != null ? Math.max(1, burst.getNumber().intValue()) : 1;
+		Value gap = node.getAttribute(ATTR_MIN_REQUEST_GAP);
+		minRequestGap = gap != null ? Math.max(0, gap.getNumber().intValue()) : 0;
+		// of the connection's own lanes; a shared endpoint keeps that of the first connection to it
+		endpoint.limiter.configure(maxRequestRate, requestBurst, minRequestGap);
+	}
+
+	/*
+	 * Adds the rate limit to an add or edit action, with the node's current
+	 * values if it has any.
+	 */
+	static void addRateLimitParameters(Action act, Node node) {
+		Value rate = node != null ? node.getAttribute(ATTR_MAX_REQUEST_RATE) : null;
+		Value burst = node != null ? node.getAttribute(ATTR_REQUEST_BURST) : null;
+		Value gap = node != null ? node.getAttribute(ATTR_MIN_REQUEST_GAP) : null;
+		act.addParameter(new Parameter(ATTR_MAX_REQUEST_RATE, ValueType.NUMBER, rate != null ? rate : new Value(0)));
+		act.addParameter(new Parameter(ATTR_REQUEST_BURST, ValueType.NUMBER, burst != null ? burst : new Value(1)));
+		act.addParameter(new Parameter(ATTR_MIN_REQUEST_GAP, ValueType.NUMBER, gap != null ? gap : new Value(0)));
 	}
 
 	public int getTimeout() {
@@ -6,10 +6,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
@@ -56,7 +52,10 @@ public class ModbusLink {
 	Node node;
 	Serializer serializer;
 	Deserializer deserializer;
-	private final Map<SlaveNode, ScheduledFuture<?>> futures;
+	final PollScheduler pollScheduler;
+	final NioEventLoop eventLoop;
+	final LinkExecutors executors;
+	final TransportRegistry transports;
 	final Set<ModbusConnection> connections;
 	final Set<ModbusMaster> masters;
 
@@ -73,7 +72,10 @@ public class ModbusLink {
 		this.node = node;
 		this.serializer = ser;
 		this.deserializer = deser;
-		this.futures = new ConcurrentHashMap<>();
+		this.pollScheduler = new PollScheduler();
+		this.eventLoop = new NioEventLoop(NioEventLoop.DEFAULT_THREADS);
+		this.executors = new LinkExecutors();
+		this.transports = new TransportRegistry(this);
 		this.connections = new HashSet<ModbusConnection>();
 		this.masters = new HashSet<ModbusMaster>();
 
@@ -97,6 +99,8 @@ public class ModbusLink {
 	private void init() {
 		restoreLastSession();
 		restoring = false;
+		executors.publishMetrics(node);
+		transports.publishMetrics(node);
 
 		Action act = getAddIpConnectionAction();
 		node.createChild(ACTION_ADD_IP_CONNECTION, true).setAction(act).build().setSerializable(false);
@@ -194,6 +198,10 @@ public class ModbusLink {
 		act.addParameter(new Parameter(ModbusConnection.ATTR_TRANSPORT_TYPE, ValueType.makeEnum("TCP", "UDP")));
 		act.addParameter(new Parameter(IpConnection.ATTR_HOST, ValueType.STRING, new Value("")));
 		act.addParameter(new Parameter(IpConnection.ATTR_PORT, ValueType.NUMBER, new Value(502)));
+		act.addParameter(new Parameter(IpConnection.ATTR_MAX_REQUESTS_IN_FLIGHT, ValueType.NUMBER, new Value(1)));
+		act.addParameter(new Parameter(IpConnection.ATTR_USE_EVENT_LOOP, ValueType.BOOL, new Value(false)));
+		act.addParameter(new Parameter(IpConnection.ATTR_SOCKETS, ValueType.NUMBER, new Value(1)));
+		act.addParameter(new Parameter(IpConnection.ATTR_UDP_HEDGE_PERCENTILE, ValueType.NUMBER, new Value(0)));
 
 		act.addParameter(new Parameter(ModbusConnection.ATTR_TIMEOUT, ValueType.NUMBER, new Value(500)));
 		act.addParameter(new Parameter(ModbusConnection.ATTR_RETRIES, ValueType.NUMBER, new Value(2)));
@@ -205,6 +213,7 @@ public class ModbusLink {
 		act.addParameter(new Parameter(ModbusConnection.ATTR_DISCARD_DATA_DELAY, ValueType.NUMBER, new Value(0)));
 		act.addParameter(
 				new Parameter(ModbusConnection.ATTR_USE_MULTIPLE_WRITE_COMMAND, ValueType.makeEnum(ModbusConnection.MULTIPLE_WRITE_COMMAND_OPTIONS), new Value(ModbusConnection.MULTIPLE_WRITE_COMMAND_DEFAULT)));
+		ModbusConnection.addRateLimitParameters(act, null);
 
 		return act;
 	}
@@ -244,6 +253,7 @@ public class ModbusLink {
 		act.addParameter(new Parameter(ModbusConnection.ATTR_DISCARD_DATA_DELAY, ValueType.NUMBER, new Value(0)));
 		act.addParameter(
 				new Parameter(ModbusConnection.ATTR_USE_MULTIPLE_WRITE_COMMAND, ValueType.makeEnum(ModbusConnection.MULTIPLE_WRITE_COMMAND_OPTIONS), new Value(ModbusConnection.MULTIPLE_WRITE_COMMAND_DEFAULT)));
+		ModbusConnection.addRateLimitParameters(act, null);
 		return act;
 	}
 
@@ -492,6 +502,12 @@ public class ModbusLink {
 			snode.setAttribute(ModbusConnection.ATTR_MAX_WRITE_REGISTER_COUNT, new Value(maxwrc));
 			snode.setAttribute(ModbusConnection.ATTR_DISCARD_DATA_DELAY, new Value(ddd));
 			snode.setAttribute(ModbusConnection.ATTR_USE_MULTIPLE_WRITE_COMMAND, new Value(mw));
+			snode.setAttribute(ModbusConnection.ATTR_MAX_REQUEST_RATE,
+					event.getParameter(ModbusConnection.ATTR_MAX_REQUEST_RATE, new Value(0)));
+			snode.setAttribute(ModbusConnection.ATTR_REQUEST_BURST,
+					event.getParameter(ModbusConnection.ATTR_REQUEST_BURST, new Value(1)));
+			snode.setAttribute(ModbusConnection.ATTR_MIN_REQUEST_GAP,
+					event.getParameter(ModbusConnection.ATTR_MIN_REQUEST_GAP, new Value(0)));
 
 			SerialConn conn = new SerialConn(getLink(), snode);
 			conn.init();
@@ -514,6 +530,10 @@ public class ModbusLink {
 			transtype = event.getParameter(ModbusConnection.ATTR_TRANSPORT_TYPE).getString();
 			host = event.getParameter(IpConnection.ATTR_HOST, ValueType.STRING).getString();
 			port = event.getParameter(IpConnection.ATTR_PORT, ValueType.NUMBER).getNumber().intValue();
+			int maxInFlight = event.getParameter(IpConnection.ATTR_MAX_REQUESTS_IN_FLIGHT, new Value(1)).getNumber()
+					.intValue();
+			boolean useEventLoop = event.getParameter(IpConnection.ATTR_USE_EVENT_LOOP, new Value(false)).getBool();
+			int sockets = event.getParameter(IpConnection.ATTR_SOCKETS, new Value(1)).getNumber().intValue();
 
 			timeout = event.getParameter(ModbusConnection.ATTR_TIMEOUT, ValueType.NUMBER).getNumber().intValue();
 			retries = event.getParameter(ModbusConnection.ATTR_RETRIES, ValueType.NUMBER).getNumber().intValue();
@@ -530,6 +550,11 @@ public class ModbusLink {
 			snode.setAttribute(ModbusConnection.ATTR_TRANSPORT_TYPE, new Value(transtype));
 			snode.setAttribute(IpConnection.ATTR_HOST, new Value(host));
 			snode.setAttribute(IpConnection.ATTR_PORT, new Value(port));
+			snode.setAttribute(IpConnection.ATTR_MAX_REQUESTS_IN_FLIGHT, new Value(Math.max(1, maxInFlight)));
+			snode.setAttribute(IpConnection.ATTR_USE_EVENT_LOOP, new Value(useEventLoop));
+			snode.setAttribute(IpConnection.ATTR_SOCKETS, new Value(Math.max(1, sockets)));
+			snode.setAttribute(IpConnection.ATTR_UDP_HEDGE_PERCENTILE,
+					event.getParameter(IpConnection.ATTR_UDP_HEDGE_PERCENTILE, new Value(0)));
 
 			snode.setAttribute(ModbusConnection.ATTR_TIMEOUT, new Value(timeout));
 			snode.setAttribute(ModbusConnection.ATTR_RETRIES, new Value(retries));
@@ -538,6 +563,12 @@ public class ModbusLink {
 			snode.setAttribute(ModbusConnection.ATTR_MAX_WRITE_REGISTER_COUNT, new Value(maxwrc));
 			snode.setAttribute(ModbusConnection.ATTR_DISCARD_DATA_DELAY, new Value(ddd));
 			snode.setAttribute(ModbusConnection.ATTR_USE_MULTIPLE_WRITE_COMMAND, new Value(mw));
+			snode.setAttribute(ModbusConnection.ATTR_MAX_REQUEST_RATE,
+					event.getParameter(ModbusConnection.ATTR_MAX_REQUEST_RATE, new Value(0)));
+			snode.setAttribute(ModbusConnection.ATTR_REQUEST_BURST,
+					event.getParameter(ModbusConnection.ATTR_REQUEST_BURST, new Value(1)));
+			snode.setAttribute(ModbusConnection.ATTR_MIN_REQUEST_GAP,
+					event.getParameter(ModbusConnection.ATTR_MIN_REQUEST_GAP, new Value(0)));
 
 			ModbusConnection conn = new IpConnection(getLink(), snode);
 			conn.init();
@@ -614,6 +645,7 @@ public class ModbusLink {
 	}
 
 	void handleEdit(SlaveFolder slave) {
+		((SlaveNode) slave).invalidateReadPlan();
 		Set<Node> set = new HashSet<>(((SlaveNode) slave).getSubscribed());
 
 		for (Node event : set) {
@@ -637,26 +669,13 @@ public class ModbusLink {
 
 	private void handleSub(final SlaveNode slave, final Node event) {
 		slave.addToSub(event);
-		if (futures.containsKey(slave)) {
-			return;
-		}
-		ScheduledThreadPoolExecutor stpe = slave.getDaemonThreadPool();
-		ScheduledFuture<?> future = stpe.scheduleWithFixedDelay(new Runnable() {
-			@Override
-			public void run() {
-				slave.readPoints();
-			}
-		}, 0, slave.intervalInMs, TimeUnit.MILLISECONDS);
-		futures.put(slave, future);
+		slave.startPolling(pollScheduler);
 	}
 
 	private void handleUnsub(SlaveNode slave, Node event) {
 		slave.removeFromSub(event);
 		if (slave.noneSubscribed()) {
-			ScheduledFuture<?> future = futures.remove(slave);
-			if (future != null) {
-				future.cancel(false);
-			}
+			slave.stopPolling(pollScheduler);
 		}
 	}
 
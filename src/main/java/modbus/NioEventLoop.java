@@ -0,0 +1,198 @@
+package modbus;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * A small, fixed set of selector threads that do the socket I/O of all
+ * event loop connections of the link.
+ *
+ * Each channel is bound to one selector thread, round robin, and all
+ * operations on its key run on that thread. The threads are started when the
+ * first channel is registered.
+ *
+ * */
+class NioEventLoop {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(NioEventLoop.class);
+	}
+
+	static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/*
+	 * Receives the readiness of a registered channel, on its selector thread.
+	 */
+	interface Channel {
+		void ready(SelectionKey key);
+
+		void failed(IOException e);
+	}
+
+	// the first wait after the selector failed, doubling up to the max while it keeps failing
+	private static final long SELECT_RETRY_MIN_MS = 10;
+	private static final long SELECT_RETRY_MAX_MS = 1000;
+
+	class Worker implements Runnable {
+		// replaced by the selector thread if it fails
+		private volatile Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private long retryDelayMs = SELECT_RETRY_MIN_MS;
+
+		Worker(Selector selector) {
+			this.selector = selector;
+		}
+
+		/*
+		 * Runs the task on the selector thread.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/*
+		 * Only valid on the selector thread, after the registration ran.
+		 */
+		SelectionKey keyFor(SelectableChannel channel) {
+			return channel.keyFor(selector);
+		}
+
+		void register(final SelectableChannel channel, final int ops, final Channel handler) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						channel.register(selector, ops, handler);
+					} catch (ClosedChannelException e) {
+						handler.failed(e);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+					retryDelayMs = SELECT_RETRY_MIN_MS;
+				} catch (IOException e) {
+					LOGGER.error("selector failed, rebuilding it in " + retryDelayMs + " ms: " + e.getMessage());
+					try {
+						Thread.sleep(retryDelayMs);
+					} catch (InterruptedException e1) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					retryDelayMs = Math.min(retryDelayMs * 2, SELECT_RETRY_MAX_MS);
+					rebuild();
+					continue;
+				}
+
+				for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						LOGGER.debug("error in event loop task: ", e);
+					}
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Channel handler = (Channel) key.attachment();
+					if (!key.isValid()) {
+						continue;
+					}
+					try {
+						handler.ready(key);
+					} catch (RuntimeException e) {
+						LOGGER.debug("error in event loop handler: ", e);
+					}
+				}
+			}
+		}
+
+		/*
+		 * Moves the channels of a failed selector to a new one, with their
+		 * interest and handler.
+		 */
+		private void rebuild() {
+			Selector fresh;
+			try {
+				fresh = Selector.open();
+			} catch (IOException e) {
+				LOGGER.error("could not open a new selector: " + e.getMessage());
+				return;
+			}
+			Selector old = selector;
+			try {
+				for (SelectionKey key : old.keys()) {
+					Channel handler = (Channel) key.attachment();
+					try {
+						key.channel().register(fresh, key.interestOps(), handler);
+					} catch (ClosedChannelException e) {
+						handler.failed(e);
+					} catch (CancelledKeyException e) {
+						// its channel is being closed
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				LOGGER.error("the failed selector is closed, its channels are lost");
+			}
+			selector = fresh;
+			// tasks added meanwhile woke the old one
+			fresh.wakeup();
+			try {
+				old.close();
+			} catch (IOException e) {
+				LOGGER.debug("error closing the failed selector: " + e.getMessage());
+			}
+		}
+	}
+
+	private final int threads;
+	private final AtomicInteger next = new AtomicInteger();
+	private Worker[] workers;
+
+	NioEventLoop(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/*
+	 * Picks the selector thread for a new channel.
+	 */
+	Worker next() throws IOException {
+		Worker[] w = start();
+		return w[(next.getAndIncrement() & Integer.MAX_VALUE) % w.length];
+	}
+
+	private synchronized Worker[] start() throws IOException {
+		if (workers == null) {
+			Worker[] w = new Worker[threads];
+			for (int i = 0; i < threads; i++) {
+				w[i] = new Worker(Selector.open());
+				Thread t = new Thread(w[i], "modbus event loop " + i);
+				t.setDaemon(true);
+				t.start();
+			}
+			workers = w;
+		}
+		return workers;
+	}
+}
@@ -0,0 +1,195 @@
+package modbus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.modbus4j.exception.ModbusInitException;
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+
+/*
+ * A Modbus TCP master on a non-blocking socket, served by the link's event
+ * loop instead of a thread of its own.
+ *
+ * The frames to send are queued and written by the selector thread. The
+ * responses are read into one buffer that is reused for the life of the
+ * socket, and complete their requests on the selector thread.
+ *
+ * */
+class NioTcpMaster extends MbapMaster implements NioEventLoop.Channel {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(NioTcpMaster.class);
+	}
+
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	private final NioEventLoop loop;
+	private final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private final CountDownLatch connecting = new CountDownLatch(1);
+
+	private NioEventLoop.Worker worker;
+	private volatile SocketChannel channel;
+	private volatile IOException connectError;
+	private volatile boolean closed;
+
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			SelectionKey key = worker.keyFor(channel);
+			if (key == null || !key.isValid()) {
+				return;
+			}
+			try {
+				flush(key);
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+	};
+
+	NioTcpMaster(NioEventLoop loop, ScheduledExecutorService timer, String host, int port, int maxInFlight) {
+		super(timer, host, port, maxInFlight);
+		this.loop = loop;
+	}
+
+	@Override
+	public void init() throws ModbusInitException {
+		try {
+			worker = loop.next();
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			if (channel.connect(new InetSocketAddress(host, port))) {
+				worker.register(channel, SelectionKey.OP_READ, this);
+				connecting.countDown();
+			} else {
+				worker.register(channel, SelectionKey.OP_CONNECT, this);
+			}
+			if (!connecting.await(Math.max(1, getTimeout()), TimeUnit.MILLISECONDS)) {
+				throw new IOException("connect timed out");
+			}
+			if (connectError != null) {
+				throw connectError;
+			}
+		} catch (IOException e) {
+			close(new ModbusTransportException(e));
+			throw new ModbusInitException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close(new ModbusTransportException(e));
+			throw new ModbusInitException(e);
+		} catch (RuntimeException e) {
+			// an unresolved host, for one
+			close(new ModbusTransportException(e));
+			throw new ModbusInitException(e);
+		}
+
+		initialized = true;
+		connected = true;
+	}
+
+	@Override
+	void write(byte[] frame) throws IOException {
+		if (closed) {
+			throw new IOException("connection closed");
+		}
+		writes.add(ByteBuffer.wrap(frame));
+		worker.execute(flush);
+	}
+
+	@Override
+	public void ready(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				channel.finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+				connecting.countDown();
+			}
+			if (key.isValid() && key.isReadable()) {
+				read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				flush(key);
+			}
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	@Override
+	public void failed(IOException e) {
+		if (connecting.getCount() > 0) {
+			connectError = e;
+			connecting.countDown();
+			return;
+		}
+		if (!closed) {
+			LOGGER.warn("connection to " + host + ":" + port + " lost: " + e.getMessage());
+			close(new ModbusTransportException(e));
+		}
+	}
+
+	/*
+	 * Writes the queued frames, and waits for the socket to become writable
+	 * again if it cannot take them all.
+	 */
+	private void flush(SelectionKey key) throws IOException {
+		for (ByteBuffer frame = writes.peek(); frame != null; frame = writes.peek()) {
+			channel.write(frame);
+			if (frame.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			writes.poll();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void read() throws IOException {
+		if (channel.read(readBuffer) < 0) {
+			throw new IOException("connection closed by peer");
+		}
+		readBuffer.flip();
+		while (readBuffer.remaining() >= MBAP_HEADER_LENGTH) {
+			int start = readBuffer.position();
+			int id = readBuffer.getShort(start) & 0xffff;
+			int length = checkHeader(readBuffer.get(start + 4), readBuffer.get(start + 5));
+			if (readBuffer.remaining() < MBAP_HEADER_LENGTH + length) {
+				break;
+			}
+			readBuffer.position(start + MBAP_HEADER_LENGTH);
+			byte[] data = new byte[length];
+			readBuffer.get(data);
+			received(id, data);
+		}
+		readBuffer.compact();
+	}
+
+	@Override
+	void close(ModbusTransportException cause) {
+		closed = true;
+		SocketChannel c = channel;
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				LOGGER.debug("error closing channel: " + e.getMessage());
+			}
+		}
+		writes.clear();
+		failPending(cause);
+	}
+}
@@ -0,0 +1,21 @@
+package modbus;
+
+/*
+ * What the scheduler does when a poll takes longer than its interval.
+ *
+ * SKIP drops the missed cycles and waits for the next one, CATCH_UP runs the
+ * missed cycles back to back, and DEGRADE stretches the interval to what the
+ * device can sustain and shrinks it again once the polls get faster.
+ *
+ * */
+public enum OverrunPolicy {
+	SKIP, CATCH_UP, DEGRADE;
+
+	static OverrunPolicy parse(String name) {
+		try {
+			return name != null ? valueOf(name) : SKIP;
+		} catch (IllegalArgumentException e) {
+			return SKIP;
+		}
+	}
+}
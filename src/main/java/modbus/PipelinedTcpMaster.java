@@ -0,0 +1,111 @@
+package modbus;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.modbus4j.exception.ModbusInitException;
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+
+/*
+ * A Modbus TCP master that keeps several requests in flight on one blocking
+ * socket.
+ *
+ * A reader thread hands each response to the request with the same
+ * transaction id, so the responses may come back in any order. A broken
+ * socket fails all requests in flight and leaves the master uninitialized,
+ * so the connection reconnects.
+ *
+ * */
+class PipelinedTcpMaster extends MbapMaster {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(PipelinedTcpMaster.class);
+	}
+
+	private final Object writeLock = new Object();
+
+	private volatile Socket socket;
+	private OutputStream out;
+	private volatile boolean closed;
+
+	PipelinedTcpMaster(ScheduledExecutorService timer, String host, int port, int maxInFlight) {
+		super(timer, host, port, maxInFlight);
+	}
+
+	@Override
+	public void init() throws ModbusInitException {
+		final DataInputStream in;
+		try {
+			Socket s = new Socket();
+			s.setTcpNoDelay(true);
+			s.connect(new InetSocketAddress(host, port), getTimeout());
+			in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			out = s.getOutputStream();
+			socket = s;
+		} catch (IOException e) {
+			throw new ModbusInitException(e);
+		}
+
+		closed = false;
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readResponses(in);
+			}
+		}, "modbus tcp reader " + host + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
+
+		initialized = true;
+		connected = true;
+	}
+
+	@Override
+	void write(byte[] frame) throws IOException {
+		synchronized (writeLock) {
+			out.write(frame);
+			out.flush();
+		}
+	}
+
+	private void readResponses(DataInputStream in) {
+		byte[] header = new byte[MBAP_HEADER_LENGTH];
+		try {
+			while (!closed) {
+				in.readFully(header);
+				int id = ((header[0] & 0xff) << 8) | (header[1] & 0xff);
+				byte[] data = new byte[checkHeader(header[4], header[5])];
+				in.readFully(data);
+				received(id, data);
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				LOGGER.warn("connection to " + host + ":" + port + " lost: " + e.getMessage());
+				close(new ModbusTransportException(e));
+			}
+		}
+	}
+
+	@Override
+	void close(ModbusTransportException cause) {
+		closed = true;
+		Socket s = socket;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				LOGGER.debug("error closing socket: " + e.getMessage());
+			}
+		}
+		failPending(cause);
+	}
+}
@@ -0,0 +1,105 @@
+package modbus;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.modbus4j.locator.BaseLocator;
+import com.serotonin.modbus4j.locator.BinaryLocator;
+
+/*
+ * An immutable, pre-parsed view of a point's attributes.
+ *
+ * It is compiled once when the point is set up or edited, and cached by the
+ * device node, so that the poll loop never has to parse string attributes.
+ *
+ * */
+class PointDescriptor {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(PointDescriptor.class);
+	}
+
+	final PointType pointType;
+	final DataType dataType;
+	final int slaveId;
+	final int range;
+	final int offset;
+	final int numRegs;
+	final int bit;
+	final double scaling;
+	final double addScale;
+	final String pollGroup;
+	final double deadband;
+	final double deadbandPercent;
+	final long maxSilenceNanos;
+	// true if the data type is decoded by modbus4j, false for the M10K types
+	final boolean nativeDataType;
+	final BaseLocator<?> locator;
+
+	PointDescriptor(PointType pointType, DataType dataType, int slaveId, int offset, int numRegs, int bit,
+			double scaling, double addScale, String pollGroup, double deadband, double deadbandPercent,
+			long maxSilenceNanos) {
+		this.pointType = pointType;
+		this.dataType = dataType;
+		this.slaveId = slaveId;
+		this.range = PointType.getPointTypeInt(pointType);
+		this.offset = offset;
+		this.numRegs = numRegs;
+		this.bit = bit;
+		this.scaling = scaling;
+		this.addScale = addScale;
+		this.pollGroup = pollGroup;
+		this.deadband = deadband;
+		this.deadbandPercent = deadbandPercent;
+		this.maxSilenceNanos = maxSilenceNanos;
+
+		Integer dt = DataType.getDataTypeInt(dataType);
+		this.nativeDataType = dt != null;
+		if (dt == null)
+			dt = com.serotonin.modbus4j.code.DataType.FOUR_BYTE_INT_SIGNED;
+
+		if (dataType == DataType.BOOLEAN && !BinaryLocator.isBinaryRange(range) && bit < 0) {
+			dt = com.serotonin.modbus4j.code.DataType.TWO_BYTE_INT_SIGNED;
+		}
+
+		this.locator = BaseLocator.createLocator(slaveId, range, offset, dt, bit, numRegs);
+	}
+
+	/**
+	 * @return the descriptor of the point, or null if the point can not be
+	 *         polled
+	 */
+	static PointDescriptor compile(int slaveId, Node pnode, String pollGroup) {
+		Value offset = pnode.getAttribute(SlaveFolder.ATTR_OFFSET);
+		if (offset == null)
+			return null;
+
+		try {
+			PointType type = PointType.valueOf(pnode.getAttribute(SlaveFolder.ATTR_POINT_TYPE).getString());
+			DataType dataType = DataType.valueOf(pnode.getAttribute(SlaveFolder.ATTR_DATA_TYPE).getString());
+			int numRegs = Util.getIntValue(pnode.getAttribute(SlaveFolder.ATTR_NUMBER_OF_REGISTERS));
+			int bit = Util.getIntValue(pnode.getAttribute(SlaveFolder.ATTR_BIT));
+			double scaling = Util.getDoubleValue(pnode.getAttribute(SlaveFolder.ATTR_SCALING));
+			double addScale = Util.getDoubleValue(pnode.getAttribute(SlaveFolder.ATTR_SCALING_OFFSET));
+			double deadband = getOptionalDouble(pnode.getAttribute(SlaveFolder.ATTR_DEADBAND));
+			double deadbandPercent = getOptionalDouble(pnode.getAttribute(SlaveFolder.ATTR_DEADBAND_PERCENT));
+			double maxSilence = getOptionalDouble(pnode.getAttribute(SlaveFolder.ATTR_MAX_SILENCE));
+
+			return new PointDescriptor(type, dataType, slaveId, Util.getIntValue(offset), numRegs, bit, scaling,
+					addScale, pollGroup, deadband, deadbandPercent, (long) (maxSilence * TimeUnit.SECONDS.toNanos(1)));
+		} catch (Exception e) {
+			LOGGER.warn("invalid point configuration for " + pnode.getName() + ": " + e.getMessage());
+			LOGGER.debug("error: ", e);
+			return null;
+		}
+	}
+
+	private static double getOptionalDouble(Value val) {
+		return val != null ? Util.getDoubleValue(val) : 0;
+	}
+}
@@ -0,0 +1,88 @@
+package modbus;
+
+/*
+ * The last published value of a polled point.
+ *
+ * Polled values are compared against it before a Value is created, so that
+ * unchanged values, and numbers that moved less than the point's deadband,
+ * are not sent to the broker. A value is always published again once the
+ * point's max silence has passed.
+ *
+ * A point is only polled by the task of its poll group, so it is never
+ * updated by two threads at once. The updates of one poll after the other
+ * run on whichever thread completed its request though, a pool, reader or
+ * selector thread, so the fields are volatile.
+ *
+ * */
+class PointState {
+	private volatile boolean published;
+	private volatile double lastNumber;
+	private volatile Object lastObject;
+	private volatile long lastPublished;
+
+	/**
+	 * @return true if the number should be published, in which case it is
+	 *         recorded as the last published value
+	 */
+	boolean checkNumber(PointDescriptor descriptor, double value, long now) {
+		if (published && !isSilent(descriptor, now) && withinDeadband(descriptor, value)) {
+			return false;
+		}
+		published = true;
+		lastNumber = value;
+		lastObject = null;
+		lastPublished = now;
+		return true;
+	}
+
+	/**
+	 * @return true if the value should be published, in which case it is
+	 *         recorded as the last published value
+	 */
+	boolean checkObject(PointDescriptor descriptor, Object value, long now) {
+		if (published && !isSilent(descriptor, now) && value.equals(lastObject)) {
+			return false;
+		}
+		published = true;
+		lastObject = value;
+		lastPublished = now;
+		return true;
+	}
+
+	/*
+	 * Called when the point's value was set outside of the poll, e.g. zeroed
+	 * after a failed poll, so that the next polled value is published.
+	 */
+	void invalidate() {
+		published = false;
+		lastObject = null;
+	}
+
+	private boolean isSilent(PointDescriptor descriptor, long now) {
+		return descriptor.maxSilenceNanos > 0 && now - lastPublished >= descriptor.maxSilenceNanos;
+	}
+
+	/*
+	 * A change is published if it exceeds the absolute or the percent
+	 * deadband. Without a deadband, any change is published.
+	 */
+	private boolean withinDeadband(PointDescriptor descriptor, double value) {
+		if (lastObject != null) {
+			return false;
+		}
+		double delta = Math.abs(value - lastNumber);
+		if (Double.isNaN(delta)) {
+			return Double.compare(value, lastNumber) == 0;
+		}
+		if (descriptor.deadband <= 0 && descriptor.deadbandPercent <= 0) {
+			return delta == 0;
+		}
+		if (descriptor.deadband > 0 && delta > descriptor.deadband) {
+			return false;
+		}
+		if (descriptor.deadbandPercent > 0 && delta > Math.abs(lastNumber) * descriptor.deadbandPercent / 100) {
+			return false;
+		}
+		return true;
+	}
+}
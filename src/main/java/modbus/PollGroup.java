@@ -0,0 +1,108 @@
+package modbus;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * A named polling interval inside one device.
+ *
+ * Points and folders are assigned to a group by name. Points without a group
+ * belong to the default group, which uses the device's polling interval.
+ * Every group gets its own read plan and its own entry in the scheduler.
+ *
+ * An aligned group polls on wall-clock boundaries of its interval, e.g. at
+ * :00, :15, :30 and :45 for an interval of 15 minutes, so that the readings
+ * of many devices form consistent snapshots.
+ *
+ * */
+class PollGroup {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(PollGroup.class);
+	}
+
+	static final String DEFAULT = "default";
+	static final String ALIGNED = "aligned";
+
+	final String name;
+	final long intervalMs;
+	final boolean aligned;
+
+	PollGroup(String name, long intervalMs, boolean aligned) {
+		this.name = name;
+		this.intervalMs = intervalMs;
+		this.aligned = aligned;
+	}
+
+	boolean isDefault() {
+		return DEFAULT.equals(name);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof PollGroup)) {
+			return false;
+		}
+		PollGroup g = (PollGroup) o;
+		return name.equals(g.name) && intervalMs == g.intervalMs && aligned == g.aligned;
+	}
+
+	@Override
+	public int hashCode() {
+		return name.hashCode() * 31 + (int) (intervalMs ^ (intervalMs >>> 32));
+	}
+
+	/**
+	 * Parses a group definition such as "fast=0.1, slow=60, meters=900
+	 * aligned", where the intervals are in seconds. The default group is
+	 * always present.
+	 */
+	static Map<String, PollGroup> parse(String spec, long defaultIntervalMs, boolean defaultAligned) {
+		Map<String, PollGroup> groups = new LinkedHashMap<String, PollGroup>();
+		groups.put(DEFAULT, new PollGroup(DEFAULT, defaultIntervalMs, defaultAligned));
+		if (spec == null) {
+			return Collections.unmodifiableMap(groups);
+		}
+
+		for (String entry : spec.split(",")) {
+			if (entry.trim().isEmpty()) {
+				continue;
+			}
+			String[] pair = entry.split("=");
+			if (pair.length != 2 || pair[0].trim().isEmpty()) {
+				LOGGER.warn("invalid poll group definition: " + entry);
+				continue;
+			}
+			String name = pair[0].trim();
+			String[] interval = pair[1].trim().split("\\s+");
+			try {
+				long intervalMs = (long) (Double.parseDouble(interval[0]) * 1000);
+				boolean aligned = interval.length > 1 && ALIGNED.equalsIgnoreCase(interval[1]);
+				if (intervalMs <= 0 || DEFAULT.equals(name) || (interval.length > 1 && !aligned)) {
+					LOGGER.warn("invalid poll group definition: " + entry);
+					continue;
+				}
+				groups.put(name, new PollGroup(name, intervalMs, aligned));
+			} catch (NumberFormatException e) {
+				LOGGER.warn("invalid poll group interval: " + entry);
+			}
+		}
+		return Collections.unmodifiableMap(groups);
+	}
+
+	/**
+	 * @return the group name to store for the given user input, or null if
+	 *         the point or folder should inherit the group of its parent
+	 */
+	static String normalize(String name) {
+		if (name == null || name.trim().isEmpty()) {
+			return null;
+		}
+		return name.trim();
+	}
+}
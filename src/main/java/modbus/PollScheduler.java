@@ -0,0 +1,451 @@
+package modbus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * One scheduler for the whole link.
+ *
+ * Instead of a timer per device, the next deadline of every poll group is
+ * kept in a single min-heap. One thread waits for the earliest deadline and
+ * hands the due poll to the thread pool of the device's connection. The
+ * pool thread only starts the poll; the rest of it runs as its requests
+ * complete, so no thread waits for a device.
+ *
+ * The polls of all devices on one connection are staggered: each task gets
+ * a phase inside its interval, and the phases are spread evenly whenever a
+ * task is added or removed, so that the devices never all poll at once.
+ * Connections that share a transport count as one connection here.
+ *
+ * A connection only runs as many polls at once as it can have requests in
+ * flight. Further due polls wait for one of them to finish instead of piling
+ * their requests up in the connection's queue, so a connection whose devices
+ * all time out cannot hold up the poll pool for the other connections.
+ *
+ * Tasks of aligned poll groups are not staggered. They are due on the
+ * wall-clock boundaries of their interval, and the aligned tasks of one
+ * connection that are due together run back to back as one snapshot.
+ *
+ * */
+class PollScheduler implements Runnable {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(PollScheduler.class);
+	}
+
+	static final String STAT_CONNECTION_BUSY = "connection busy (%)";
+	static final String STAT_SATURATING_DEVICES = "saturating devices";
+
+	// a task that is further behind than this gives up catching up
+	private static final int MAX_CATCH_UP_CYCLES = 10;
+
+	// aligned tasks due within this time of each other form one snapshot
+	private static final long SNAPSHOT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/*
+	 * Shortest polls first, which minimizes the mean delay between the
+	 * boundary and the readings of a snapshot.
+	 */
+	private static final Comparator<PollTask> SHORTEST_FIRST = new Comparator<PollTask>() {
+		@Override
+		public int compare(PollTask t1, PollTask t2) {
+			return Long.compare(t1.lastDurationNanos, t2.lastDurationNanos);
+		}
+	};
+
+	/*
+	 * The time source of the deadlines.
+	 */
+	interface Clock {
+		long nanoTime();
+
+		long currentTimeMillis();
+	}
+
+	static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	private final Clock clock;
+	private final PriorityQueue<PollTask> queue = new PriorityQueue<PollTask>();
+	private final Map<Object, Stagger> staggers = new HashMap<Object, Stagger>();
+	private Thread thread;
+
+	PollScheduler() {
+		this(SYSTEM_CLOCK);
+	}
+
+	PollScheduler(Clock clock) {
+		this.clock = clock;
+	}
+
+	/*
+	 * The tasks that share one endpoint, and the time their phases are
+	 * counted from.
+	 */
+	private static class Stagger {
+		final long epoch;
+		final List<PollTask> tasks = new ArrayList<PollTask>();
+		String saturating = "";
+		long busyPublished;
+		// polls handed to the pool and not finished yet
+		int running;
+		final Queue<Dispatch> waiting = new ArrayDeque<Dispatch>();
+
+		Stagger(long epoch) {
+			this.epoch = epoch;
+			this.busyPublished = epoch - PollTask.PUBLISH_PERIOD_NANOS;
+		}
+	}
+
+	/*
+	 * Polls of one connection handed over together. They run one after the
+	 * other, each started when the one before it is over, and the dispatch
+	 * counts as running until the last one is.
+	 */
+	private class Dispatch implements Runnable {
+		final List<PollTask> tasks;
+		// the stagger it counts as running in, null if it was not counted
+		Stagger stagger;
+		private int next;
+
+		Dispatch(List<PollTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		public void run() {
+			pollNext();
+		}
+
+		private void pollNext() {
+			if (next == tasks.size()) {
+				finished(this);
+				return;
+			}
+			tasks.get(next++).poll(new Runnable() {
+				@Override
+				public void run() {
+					pollNext();
+				}
+			});
+		}
+	}
+
+	PollTask schedule(SlaveNode slave, PollGroup group) {
+		PollTask task = new PollTask(this, slave, group);
+		synchronized (this) {
+			add(task);
+			start();
+			notifyAll();
+		}
+		return task;
+	}
+
+	/*
+	 * Puts a new task on the heap, at its phase among the tasks of its
+	 * connection.
+	 */
+	synchronized void add(PollTask task) {
+		Stagger stagger = staggers.get(task.scheduleKey);
+		if (stagger == null) {
+			stagger = new Stagger(clock.nanoTime());
+			staggers.put(task.scheduleKey, stagger);
+		}
+		task.epoch = stagger.epoch;
+		task.due = clock.nanoTime();
+		stagger.tasks.add(task);
+		queue.add(task);
+		rebalance(stagger);
+	}
+
+	void cancel(PollTask task) {
+		task.cancelled = true;
+		synchronized (this) {
+			queue.remove(task);
+			Stagger stagger = staggers.get(task.scheduleKey);
+			if (stagger != null && stagger.tasks.remove(task)) {
+				if (stagger.tasks.isEmpty()) {
+					staggers.remove(task.scheduleKey);
+				} else {
+					rebalance(stagger);
+				}
+			}
+			notifyAll();
+		}
+	}
+
+	/*
+	 * Called by a task when its poll finished. Normally the next deadline is
+	 * the next point of the task's phase grid, so missed deadlines are
+	 * skipped and a slow poll never causes a burst of back-to-back polls.
+	 * With the CATCH_UP policy the missed deadlines run back to back instead,
+	 * unless the task has fallen too far behind.
+	 */
+	void completed(PollTask task) {
+		if (task.cancelled) {
+			return;
+		}
+		long missed = 0;
+		double busy = -1;
+		String saturating = null;
+		synchronized (this) {
+			long now = clock.nanoTime();
+			long interval = task.intervalNanos;
+			long next = task.due + interval;
+			if (task.group.aligned || task.slave.overrunPolicy != OverrunPolicy.CATCH_UP
+					|| now - next > MAX_CATCH_UP_CYCLES * interval) {
+				long due = nextDue(task, now);
+				missed = Math.max(0, (due - next) / interval);
+				next = due;
+			}
+			task.due = next;
+			queue.add(task);
+			notifyAll();
+
+			Stagger stagger = staggers.get(task.scheduleKey);
+			if (stagger != null) {
+				boolean publishBusy = now - stagger.busyPublished >= PollTask.PUBLISH_PERIOD_NANOS;
+				if (publishBusy) {
+					stagger.busyPublished = now;
+					busy = 0;
+				}
+				StringBuilder names = new StringBuilder();
+				for (PollTask t : stagger.tasks) {
+					if (publishBusy) {
+						busy += t.duty;
+					}
+					if (t.overrunning && names.indexOf(t.slave.node.getName()) < 0) {
+						if (names.length() > 0) {
+							names.append(", ");
+						}
+						names.append(t.slave.node.getName());
+					}
+				}
+				if (!names.toString().equals(stagger.saturating)) {
+					stagger.saturating = names.toString();
+					saturating = stagger.saturating;
+				}
+			}
+		}
+
+		if (missed > 0) {
+			task.recordMissed(missed);
+		}
+		if (busy >= 0) {
+			task.slave.conn.getStatistics().set(STAT_CONNECTION_BUSY, Math.round(busy * 100));
+		}
+		if (saturating != null) {
+			task.slave.conn.getStatistics().set(STAT_SATURATING_DEVICES, saturating);
+		}
+	}
+
+	/*
+	 * Spreads the phases of a connection's tasks evenly over their intervals.
+	 * Waiting tasks move to their new phase right away, running tasks when
+	 * they complete.
+	 */
+	private void rebalance(Stagger stagger) {
+		long now = clock.nanoTime();
+		int n = 0;
+		for (PollTask task : stagger.tasks) {
+			if (!task.group.aligned) {
+				n++;
+			}
+		}
+		int i = 0;
+		for (PollTask task : stagger.tasks) {
+			if (!task.group.aligned) {
+				task.phaseNanos = task.intervalNanos / n * i++;
+			}
+			if (queue.remove(task)) {
+				task.due = nextDue(task, now - 1);
+				queue.add(task);
+			}
+		}
+	}
+
+	/*
+	 * @return the first deadline of the task's phase grid after the given
+	 *         time
+	 */
+	long nextDue(PollTask task, long after) {
+		if (task.group.aligned) {
+			return nextBoundary(task, after);
+		}
+		long base = task.epoch + task.phaseNanos;
+		long interval = task.intervalNanos;
+		if (after - base < 0) {
+			return base;
+		}
+		return base + ((after - base) / interval + 1) * interval;
+	}
+
+	/*
+	 * The boundary is computed from the wall clock every time, so aligned
+	 * polls follow clock adjustments instead of drifting with nanoTime.
+	 */
+	private long nextBoundary(PollTask task, long after) {
+		long nanoNow = clock.nanoTime();
+		long wallNow = clock.currentTimeMillis();
+		long wallAfter = wallNow + TimeUnit.NANOSECONDS.toMillis(after - nanoNow);
+		long interval = Math.max(1, task.group.intervalMs);
+		long boundary = (wallAfter / interval + 1) * interval;
+		return nanoNow + TimeUnit.MILLISECONDS.toNanos(boundary - wallNow);
+	}
+
+	private void start() {
+		if (thread == null) {
+			thread = new Thread(this, "modbus-poll-scheduler");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			List<PollTask> due;
+			synchronized (this) {
+				due = takeDue(clock.nanoTime());
+				if (due.isEmpty()) {
+					PollTask next = queue.peek();
+					waitQuietly(next == null ? 0
+							: Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.due - clock.nanoTime())));
+					continue;
+				}
+			}
+			dispatch(due);
+		}
+	}
+
+	/*
+	 * Takes the earliest task off the heap if it is due, together with the
+	 * aligned tasks of its snapshot.
+	 *
+	 * @return the tasks to hand over, empty if none is due yet
+	 */
+	synchronized List<PollTask> takeDue(long now) {
+		List<PollTask> due = new ArrayList<PollTask>();
+		PollTask task = queue.peek();
+		if (task == null || task.due - now > 0) {
+			return due;
+		}
+		queue.poll();
+		due.add(task);
+		if (task.group.aligned) {
+			while (queue.peek() != null && queue.peek().due - task.due < SNAPSHOT_WINDOW_NANOS) {
+				due.add(queue.poll());
+			}
+		}
+		return due;
+	}
+
+	/*
+	 * Hands the due tasks to their connections' thread pools. Aligned tasks
+	 * of the same connection are handed over together as one snapshot.
+	 */
+	private void dispatch(List<PollTask> due) {
+		Map<Object, List<PollTask>> snapshots = new HashMap<Object, List<PollTask>>();
+		for (PollTask task : due) {
+			if (task.cancelled) {
+				continue;
+			}
+			if (!task.group.aligned) {
+				handOver(Collections.singletonList(task));
+				continue;
+			}
+			List<PollTask> snapshot = snapshots.get(task.scheduleKey);
+			if (snapshot == null) {
+				snapshot = new ArrayList<PollTask>();
+				snapshots.put(task.scheduleKey, snapshot);
+			}
+			snapshot.add(task);
+		}
+
+		for (List<PollTask> snapshot : snapshots.values()) {
+			Collections.sort(snapshot, SHORTEST_FIRST);
+			handOver(snapshot);
+		}
+	}
+
+	private void handOver(List<PollTask> tasks) {
+		Dispatch dispatch = new Dispatch(tasks);
+		PollTask first = tasks.get(0);
+		synchronized (this) {
+			Stagger stagger = staggers.get(first.scheduleKey);
+			if (stagger != null) {
+				dispatch.stagger = stagger;
+				if (stagger.running >= first.slave.conn.getPollParallelism()) {
+					stagger.waiting.add(dispatch);
+					return;
+				}
+				stagger.running++;
+			}
+		}
+		execute(dispatch);
+	}
+
+	private void execute(Dispatch dispatch) {
+		try {
+			dispatch.tasks.get(0).slave.getPollExecutor().execute(dispatch);
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug("poll rejected: ", e);
+			for (PollTask task : dispatch.tasks) {
+				completed(task);
+			}
+			finished(dispatch);
+		}
+	}
+
+	/*
+	 * Hands the connection's next waiting poll to the pool. The dispatch
+	 * counted in the stagger it was handed over in, even if the connection's
+	 * tasks were removed and a new stagger took its key meanwhile.
+	 */
+	private void finished(Dispatch dispatch) {
+		Dispatch next = null;
+		synchronized (this) {
+			Stagger stagger = dispatch.stagger;
+			if (stagger == null) {
+				return;
+			}
+			next = stagger.waiting.poll();
+			if (next == null) {
+				stagger.running = Math.max(0, stagger.running - 1);
+			}
+		}
+		if (next != null) {
+			execute(next);
+		}
+	}
+
+	private void waitQuietly(long millis) {
+		try {
+			wait(millis);
+		} catch (InterruptedException e) {
+			LOGGER.debug("poll scheduler interrupted");
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package modbus;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * The polling state of one poll group of a device inside the link-wide
+ * PollScheduler.
+ *
+ * A task is either waiting in the scheduler's deadline heap or polling, never
+ * both. A poll holds no thread while it waits for the device.
+ *
+ * */
+class PollTask implements Comparable<PollTask> {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(PollTask.class);
+	}
+
+	static final String STAT_POLL_LAG = "poll lag (ms)";
+	static final String STAT_MAX_POLL_LAG = "max poll lag (ms)";
+	static final String STAT_OVERRUNS = "poll overruns";
+	static final String STAT_MISSED_POLLS = "missed polls";
+	static final String STAT_ACHIEVED_RATE = "achieved rate (polls/s)";
+	static final String STAT_EFFECTIVE_INTERVAL = "effective interval (ms)";
+	static final String STAT_BUSY = "poll busy (%)";
+	static final String STAT_SNAPSHOT_SKEW = "snapshot skew (ms)";
+
+	// weight of the latest poll in the smoothed interval and duty cycle
+	private static final double SMOOTHING = 0.2;
+	// the statistics of a task are published at most this often
+	static final long PUBLISH_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	final SlaveNode slave;
+	final PollGroup group;
+	// the tasks of connections to the same endpoint are staggered together
+	final Object scheduleKey;
+	private final PollScheduler scheduler;
+
+	final long configuredIntervalNanos;
+	volatile long intervalNanos;
+	volatile boolean cancelled;
+
+	// true if the latest poll took longer than the interval
+	volatile boolean overrunning;
+	// the smoothed share of wall time this task keeps its connection busy
+	volatile double duty;
+	volatile long lastDurationNanos;
+
+	// the deadline of the next (or the running) poll, in System.nanoTime()
+	long due;
+	// the deadlines are epoch + phaseNanos + k * intervalNanos
+	long epoch;
+	long phaseNanos;
+
+	private long lagMs;
+	private long maxLagMs;
+	private long skewMs = -1;
+	private long overruns;
+	private long missed;
+	private long lastStart;
+	private double avgIntervalNanos;
+	private long published;
+	private boolean everPublished;
+
+	PollTask(PollScheduler scheduler, SlaveNode slave, PollGroup group) {
+		this(scheduler, slave, group, slave.conn.getScheduleKey());
+	}
+
+	PollTask(PollScheduler scheduler, SlaveNode slave, PollGroup group, Object scheduleKey) {
+		this.scheduler = scheduler;
+		this.slave = slave;
+		this.group = group;
+		this.scheduleKey = scheduleKey;
+		this.configuredIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, group.intervalMs));
+		this.intervalNanos = configuredIntervalNanos;
+	}
+
+	/*
+	 * Starts the poll. It goes on as its requests complete, and once it is
+	 * over the task is handed back to the scheduler and done runs.
+	 */
+	void poll(final Runnable done) {
+		final long start = System.nanoTime();
+		final AtomicBoolean over = new AtomicBoolean();
+		Runnable polled = new Runnable() {
+			@Override
+			public void run() {
+				if (!over.compareAndSet(false, true)) {
+					return;
+				}
+				try {
+					recordDuration(start, System.nanoTime());
+				} finally {
+					scheduler.completed(PollTask.this);
+					done.run();
+				}
+			}
+		};
+		if (cancelled) {
+			over.set(true);
+			scheduler.completed(this);
+			done.run();
+			return;
+		}
+		recordLag(start);
+		try {
+			slave.readPoints(group, polled);
+		} catch (RuntimeException e) {
+			LOGGER.warn("error during poll of " + slave.node.getName() + ": " + e.getMessage());
+			LOGGER.debug("error: ", e);
+			polled.run();
+		}
+	}
+
+	/*
+	 * Detects overruns and applies the device's overrun policy to the
+	 * interval of the next poll.
+	 */
+	private void recordDuration(long start, long end) {
+		long duration = end - start;
+		OverrunPolicy policy = slave.overrunPolicy;
+		lastDurationNanos = duration;
+		if (group.aligned) {
+			// how long after the boundary the last reading of this poll was taken
+			skewMs = TimeUnit.NANOSECONDS.toMillis(Math.max(0, end - due));
+		}
+
+		overrunning = duration > intervalNanos;
+		if (overrunning) {
+			overruns++;
+		}
+
+		long interval = intervalNanos;
+		if (policy != OverrunPolicy.DEGRADE) {
+			interval = configuredIntervalNanos;
+		} else if (overrunning) {
+			interval = Math.max(configuredIntervalNanos, duration + duration / 4);
+		} else if (duration < interval / 2) {
+			interval = Math.max(configuredIntervalNanos, interval - interval / 4);
+		}
+		intervalNanos = interval;
+
+		if (lastStart != 0) {
+			long achieved = start - lastStart;
+			avgIntervalNanos = avgIntervalNanos == 0 ? achieved
+					: avgIntervalNanos + SMOOTHING * (achieved - avgIntervalNanos);
+			duty = duty + SMOOTHING * ((double) duration / Math.max(achieved, 1) - duty);
+		}
+		lastStart = start;
+		publish(end);
+	}
+
+	void recordMissed(long count) {
+		missed += count;
+	}
+
+	private void recordLag(long start) {
+		lagMs = TimeUnit.NANOSECONDS.toMillis(Math.max(0, start - due));
+		maxLagMs = Math.max(maxLagMs, lagMs);
+	}
+
+	/*
+	 * Publishes the latest statistics of the task, unless it did so within
+	 * the last period, so a fast poll does not update them every cycle.
+	 */
+	private void publish(long now) {
+		if (everPublished && now - published < PUBLISH_PERIOD_NANOS) {
+			return;
+		}
+		everPublished = true;
+		published = now;
+
+		Statistics stats = slave.getStatistics();
+		stats.set(statName(STAT_POLL_LAG), lagMs);
+		stats.set(statName(STAT_MAX_POLL_LAG), maxLagMs);
+		stats.set(statName(STAT_OVERRUNS), overruns);
+		stats.set(statName(STAT_MISSED_POLLS), missed);
+		stats.set(statName(STAT_EFFECTIVE_INTERVAL), TimeUnit.NANOSECONDS.toMillis(intervalNanos));
+		if (skewMs >= 0) {
+			stats.set(statName(STAT_SNAPSHOT_SKEW), skewMs);
+		}
+		if (avgIntervalNanos > 0) {
+			stats.set(statName(STAT_ACHIEVED_RATE), TimeUnit.SECONDS.toNanos(1) / avgIntervalNanos);
+			stats.set(statName(STAT_BUSY), Math.round(duty * 100));
+		}
+	}
+
+	String statName(String stat) {
+		return group.isDefault() ? stat : group.name + " " + stat;
+	}
+
+	@Override
+	public int compareTo(PollTask other) {
+		return Long.compare(due - other.due, 0);
+	}
+}
@@ -0,0 +1,175 @@
+package modbus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.modbus4j.ModbusMaster;
+import com.serotonin.modbus4j.exception.ModbusInitException;
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+import com.serotonin.modbus4j.msg.ModbusRequest;
+import com.serotonin.modbus4j.msg.ModbusResponse;
+
+/*
+ * Several sockets to one gateway, for gateways that take several clients
+ * but serialize the requests of each.
+ *
+ * Every unit id is assigned to one socket, so the requests of a device keep
+ * their order, and devices on different sockets are polled in parallel. The
+ * request queue runs one worker per socket, or hands the requests straight
+ * to sockets that match responses by transaction id. Sockets the gateway
+ * refuses at startup are left out, and their unit ids are spread over the
+ * others.
+ *
+ * */
+class PooledMaster extends ModbusMaster implements TimedMaster {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(PooledMaster.class);
+	}
+
+	private final List<ModbusMaster> sockets;
+	private volatile ModbusMaster[] live = new ModbusMaster[0];
+
+	PooledMaster(List<ModbusMaster> sockets) {
+		this.sockets = sockets;
+	}
+
+	@Override
+	public void init() throws ModbusInitException {
+		List<ModbusMaster> opened = new ArrayList<ModbusMaster>();
+		ModbusInitException error = null;
+		for (ModbusMaster m : sockets) {
+			try {
+				m.init();
+				if (m.isInitialized()) {
+					opened.add(m);
+					continue;
+				}
+			} catch (ModbusInitException e) {
+				error = e;
+			}
+			LOGGER.debug("socket " + (opened.size() + 1) + " of " + sockets.size() + " refused");
+			destroy(m);
+		}
+		if (opened.isEmpty()) {
+			throw error != null ? error : new ModbusInitException("no socket could be opened");
+		}
+		if (opened.size() < sockets.size()) {
+			LOGGER.warn("opened " + opened.size() + " of " + sockets.size() + " sockets");
+		}
+		live = opened.toArray(new ModbusMaster[opened.size()]);
+		initialized = true;
+	}
+
+	@Override
+	public boolean isInitialized() {
+		if (!initialized) {
+			return false;
+		}
+		for (ModbusMaster m : live) {
+			if (!m.isInitialized()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void destroy() {
+		initialized = false;
+		for (ModbusMaster m : sockets) {
+			destroy(m);
+		}
+	}
+
+	private static void destroy(ModbusMaster m) {
+		try {
+			m.destroy();
+		} catch (Exception e) {
+			LOGGER.debug("error destroying socket: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void setTimeout(int timeout) {
+		super.setTimeout(timeout);
+		for (ModbusMaster m : sockets) {
+			m.setTimeout(timeout);
+		}
+	}
+
+	@Override
+	public void setRetries(int retries) {
+		super.setRetries(retries);
+		for (ModbusMaster m : sockets) {
+			m.setRetries(retries);
+		}
+	}
+
+	@Override
+	public void setDiscardDataDelay(int discardDataDelay) {
+		super.setDiscardDataDelay(discardDataDelay);
+		for (ModbusMaster m : sockets) {
+			m.setDiscardDataDelay(discardDataDelay);
+		}
+	}
+
+	/**
+	 * @return the number of sockets that requests are spread over
+	 */
+	int size() {
+		return Math.max(1, live.length);
+	}
+
+	/**
+	 * @return the index of the socket the unit id is assigned to
+	 */
+	int socketFor(int slaveId) {
+		return slaveId % size();
+	}
+
+	/**
+	 * @return the socket the unit id is assigned to, or null if none is open
+	 */
+	ModbusMaster socket(int slaveId) {
+		ModbusMaster[] l = live;
+		return l.length > 0 ? l[slaveId % l.length] : null;
+	}
+
+	@Override
+	public ModbusResponse sendImpl(ModbusRequest request) throws ModbusTransportException {
+		return send(request, getTimeout(), getRetries());
+	}
+
+	/*
+	 * Takes the timeout and retries only if the sockets do, otherwise the
+	 * pool's apply.
+	 */
+	@Override
+	public ModbusResponse send(ModbusRequest request, int timeout, int retries) throws ModbusTransportException {
+		ModbusMaster[] l = live;
+		if (l.length == 0) {
+			throw new ModbusTransportException("not connected", request.getSlaveId());
+		}
+		ModbusMaster m = l[request.getSlaveId() % l.length];
+		if (m instanceof ConcurrentMaster) {
+			return send(m, request, timeout, retries);
+		}
+		synchronized (m) {
+			return send(m, request, timeout, retries);
+		}
+	}
+
+	private static ModbusResponse send(ModbusMaster m, ModbusRequest request, int timeout, int retries)
+			throws ModbusTransportException {
+		if (m instanceof TimedMaster) {
+			return ((TimedMaster) m).send(request, timeout, retries);
+		}
+		// keeps the timeout it was created with
+		return m.send(request);
+	}
+}
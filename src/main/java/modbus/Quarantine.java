@@ -0,0 +1,77 @@
+package modbus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.Node;
+
+/*
+ * The points of a device that are left out of its read plan because the
+ * device refuses to read them.
+ *
+ * A quarantined point is probed on its own once its backoff has passed. The
+ * backoff doubles with every failed probe, and a successful probe releases
+ * the point back into the plan.
+ *
+ * */
+class Quarantine {
+	static final long MIN_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(1);
+	static final long MAX_BACKOFF_NANOS = TimeUnit.HOURS.toNanos(1);
+
+	private static class Entry {
+		long backoffNanos = MIN_BACKOFF_NANOS;
+		long probeAt;
+	}
+
+	private final ConcurrentMap<Node, Entry> entries = new ConcurrentHashMap<Node, Entry>();
+
+	/**
+	 * Quarantines the point, or doubles its backoff if it already is and its
+	 * probe is due.
+	 */
+	synchronized void add(Node pnode, long now) {
+		Entry entry = entries.get(pnode);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(pnode, entry);
+		} else if (entry.probeAt - now > 0) {
+			return;
+		} else {
+			entry.backoffNanos = Math.min(entry.backoffNanos * 2, MAX_BACKOFF_NANOS);
+		}
+		entry.probeAt = now + entry.backoffNanos;
+	}
+
+	void release(Node pnode) {
+		entries.remove(pnode);
+	}
+
+	boolean contains(Node pnode) {
+		return entries.containsKey(pnode);
+	}
+
+	boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the quarantined points whose probe is due
+	 */
+	synchronized List<Node> getDue(long now) {
+		List<Node> due = new ArrayList<Node>();
+		for (Map.Entry<Node, Entry> e : entries.entrySet()) {
+			if (e.getValue().probeAt - now <= 0) {
+				due.add(e.getKey());
+			}
+		}
+		return due;
+	}
+}
@@ -0,0 +1,73 @@
+package modbus;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeps the requests to an endpoint below the rate it can take.
+ *
+ * A token bucket holds up to the burst size in tokens and refills at the
+ * configured rate, and every request takes one. Requests are also kept at
+ * least the minimum gap apart. Callers do not wait in here: reserve() books
+ * the next free slot and returns how long until it, so requests are
+ * released in the order they reserved.
+ *
+ * */
+class RateLimiter {
+	private static final double SMOOTHING = 0.2;
+
+	// requests per second, 0 for no limit
+	private double rate;
+	private double burst = 1;
+	private long minGapNanos;
+
+	// negative while reservations are ahead of the refill
+	private double tokens = 1;
+	private long refilled = System.nanoTime();
+	private long lastSlot;
+	private boolean reserved;
+	private double avgDelayNanos;
+
+	synchronized void configure(double rate, int burst, long minGapMs) {
+		this.rate = Math.max(0, rate);
+		this.burst = Math.max(1, burst);
+		this.minGapNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minGapMs));
+		this.tokens = Math.min(tokens, this.burst);
+	}
+
+	synchronized boolean isLimited() {
+		return rate > 0 || minGapNanos > 0;
+	}
+
+	/**
+	 * Books the slot of one request.
+	 *
+	 * @return the nanoseconds until the request may be sent
+	 */
+	synchronized long reserve(long now) {
+		long slot = now;
+		if (rate > 0) {
+			tokens = Math.min(burst, tokens + (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+			refilled = now;
+			tokens -= 1;
+			if (tokens < 0) {
+				slot = now + (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+			}
+		}
+		if (minGapNanos > 0 && reserved && slot - lastSlot < minGapNanos) {
+			slot = lastSlot + minGapNanos;
+		}
+		lastSlot = slot;
+		reserved = true;
+
+		long delay = slot - now;
+		avgDelayNanos += SMOOTHING * (delay - avgDelayNanos);
+		return delay;
+	}
+
+	/**
+	 * @return the smoothed time requests wait for their slot
+	 */
+	synchronized long getAverageDelayMs() {
+		return TimeUnit.NANOSECONDS.toMillis((long) avgDelayNanos);
+	}
+}
@@ -0,0 +1,265 @@
+package modbus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.dsa.iot.dslink.node.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.modbus4j.code.FunctionCode;
+import com.serotonin.modbus4j.code.RegisterRange;
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+import com.serotonin.modbus4j.locator.BinaryLocator;
+import com.serotonin.modbus4j.msg.ModbusRequest;
+import com.serotonin.modbus4j.msg.ReadCoilsRequest;
+import com.serotonin.modbus4j.msg.ReadDiscreteInputsRequest;
+import com.serotonin.modbus4j.msg.ReadHoldingRegistersRequest;
+import com.serotonin.modbus4j.msg.ReadInputRegistersRequest;
+
+/*
+ * The compiled read plan of a device: the list of Modbus read requests that
+ * cover all subscribed points, and for every request the points it serves.
+ *
+ * The layout of a plan is immutable. The device builds it once and keeps
+ * using it until the subscriptions or the point configuration change. Only
+ * the adaptive polling state of its blocks changes from poll to poll.
+ *
+ * */
+class ReadPlan {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(ReadPlan.class);
+	}
+
+	static final ReadPlan EMPTY = new ReadPlan(Collections.<Block> emptyList());
+
+	static class Block {
+		final int range;
+		final int start;
+		final int length;
+		final ModbusRequest request;
+		final Node[] points;
+		final PointDescriptor[] descriptors;
+		final AdaptiveRate rate = new AdaptiveRate();
+
+		Block(int range, int start, int length, ModbusRequest request, List<Entry> entries) {
+			this.range = range;
+			this.start = start;
+			this.length = length;
+			this.request = request;
+			this.points = new Node[entries.size()];
+			this.descriptors = new PointDescriptor[entries.size()];
+			for (int i = 0; i < points.length; i++) {
+				points[i] = entries.get(i).point;
+				descriptors[i] = entries.get(i).descriptor;
+			}
+		}
+
+		private Block(int range, int start, int length, ModbusRequest request, Node[] points,
+				PointDescriptor[] descriptors) {
+			this.range = range;
+			this.start = start;
+			this.length = length;
+			this.request = request;
+			this.points = points;
+			this.descriptors = descriptors;
+		}
+
+		/**
+		 * @return a block that reads just the given points, which must all be
+		 *         in the same register range
+		 */
+		static Block of(Node[] points, PointDescriptor[] descriptors) throws ModbusTransportException {
+			int start = Integer.MAX_VALUE;
+			int end = Integer.MIN_VALUE;
+			for (PointDescriptor descriptor : descriptors) {
+				start = Math.min(start, descriptor.locator.getOffset());
+				end = Math.max(end, descriptor.locator.getEndOffset());
+			}
+			int range = descriptors[0].range;
+			ModbusRequest request = createReadRequest(descriptors[0].slaveId, range, start, end - start + 1);
+			return new Block(range, start, end - start + 1, request, points, descriptors);
+		}
+
+		/**
+		 * @return a block that reads the points from index from, inclusive,
+		 *         to index to, exclusive
+		 */
+		Block slice(int from, int to) throws ModbusTransportException {
+			return of(Arrays.copyOfRange(points, from, to), Arrays.copyOfRange(descriptors, from, to));
+		}
+
+		/**
+		 * Decodes the value of the point at the given index from the data of
+		 * this block's response.
+		 */
+		Object decode(int index, byte[] data) {
+			return descriptors[index].locator.bytesToValue(data, start);
+		}
+	}
+
+	private static class Entry {
+		final Node point;
+		final PointDescriptor descriptor;
+
+		Entry(Node point, PointDescriptor descriptor) {
+			this.point = point;
+			this.descriptor = descriptor;
+		}
+
+		int getStart() {
+			return descriptor.locator.getOffset();
+		}
+
+		int getEnd() {
+			return descriptor.locator.getEndOffset();
+		}
+	}
+
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if (e1.descriptor.range != e2.descriptor.range) {
+				return e1.descriptor.range - e2.descriptor.range;
+			}
+			return e1.getStart() - e2.getStart();
+		}
+	};
+
+	final List<Block> blocks;
+	// the largest gaps of unused registers and bits the plan was built with
+	final int maxGapRegisters;
+	final int maxGapBits;
+
+	private ReadPlan(List<Block> blocks) {
+		this(blocks, 0, 0);
+	}
+
+	private ReadPlan(List<Block> blocks, int maxGapRegisters, int maxGapBits) {
+		this.blocks = blocks;
+		this.maxGapRegisters = maxGapRegisters;
+		this.maxGapBits = maxGapBits;
+	}
+
+	/**
+	 * @return true if the plan was built with gap limits so different from
+	 *         the given ones that it should be built again
+	 */
+	boolean isOutdated(int gapRegisters, int gapBits) {
+		return differs(maxGapRegisters, gapRegisters) || differs(maxGapBits, gapBits);
+	}
+
+	private static boolean differs(int planned, int current) {
+		return current > 2 * planned + 1 || planned > 2 * current + 1;
+	}
+
+	boolean isEmpty() {
+		return blocks.isEmpty();
+	}
+
+	/**
+	 * Builds the read plan for the given points. Two points share a request
+	 * if the gap of unused registers between them is not larger than the
+	 * given limit, which comes from the connection's cost model, and if the
+	 * gap contains no illegal address.
+	 *
+	 * @param batch
+	 *            if false, every point is read with its own request
+	 * @param maxGapRegisters
+	 *            the largest gap of unused registers a request may cover
+	 * @param maxGapBits
+	 *            the largest gap of unused coils or inputs a request may
+	 *            cover
+	 */
+	static ReadPlan build(int slaveId, Map<Node, PointDescriptor> points, boolean batch, int maxGapRegisters,
+			int maxGapBits, int maxRegisters, int maxBits, IllegalAddresses illegal) {
+		if (points.isEmpty()) {
+			return EMPTY;
+		}
+
+		List<Entry> entries = new ArrayList<Entry>(points.size());
+		for (Map.Entry<Node, PointDescriptor> e : points.entrySet()) {
+			entries.add(new Entry(e.getKey(), e.getValue()));
+		}
+		Collections.sort(entries, ENTRY_ORDER);
+
+		List<Block> blocks = new ArrayList<Block>();
+		List<Entry> current = new ArrayList<Entry>();
+		int range = -1;
+		int start = 0;
+		int end = 0;
+		for (Entry entry : entries) {
+			boolean binary = BinaryLocator.isBinaryRange(entry.descriptor.range);
+			int max = binary ? maxBits : maxRegisters;
+			int maxGap = binary ? maxGapBits : maxGapRegisters;
+			boolean fits = batch && !current.isEmpty() && entry.descriptor.range == range
+					&& Math.max(end, entry.getEnd()) - start + 1 <= max
+					&& entry.getStart() - end - 1 <= maxGap
+					&& !illegal.intersects(range, end + 1, entry.getStart() - 1);
+			if (!fits) {
+				addBlock(blocks, slaveId, range, start, end, current);
+				current = new ArrayList<Entry>();
+				range = entry.descriptor.range;
+				start = entry.getStart();
+				end = entry.getEnd();
+			}
+			end = Math.max(end, entry.getEnd());
+			current.add(entry);
+		}
+		addBlock(blocks, slaveId, range, start, end, current);
+
+		return new ReadPlan(Collections.unmodifiableList(blocks), maxGapRegisters, maxGapBits);
+	}
+
+	private static void addBlock(List<Block> blocks, int slaveId, int range, int start, int end,
+			List<Entry> entries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		int length = end - start + 1;
+		try {
+			ModbusRequest request = createReadRequest(slaveId, range, start, length);
+			blocks.add(new Block(range, start, length, request, entries));
+		} catch (ModbusTransportException e) {
+			LOGGER.warn("unable to create read request at offset " + start + ": " + e.getMessage());
+			LOGGER.debug("error: ", e);
+		}
+	}
+
+	static int getReadFunctionCode(int range) {
+		switch (range) {
+		case RegisterRange.COIL_STATUS:
+			return FunctionCode.READ_COILS;
+		case RegisterRange.INPUT_STATUS:
+			return FunctionCode.READ_DISCRETE_INPUTS;
+		case RegisterRange.HOLDING_REGISTER:
+			return FunctionCode.READ_HOLDING_REGISTERS;
+		case RegisterRange.INPUT_REGISTER:
+			return FunctionCode.READ_INPUT_REGISTERS;
+		default:
+			return 0;
+		}
+	}
+
+	static ModbusRequest createReadRequest(int slaveId, int range, int start, int length)
+			throws ModbusTransportException {
+		switch (range) {
+		case RegisterRange.COIL_STATUS:
+			return new ReadCoilsRequest(slaveId, start, length);
+		case RegisterRange.INPUT_STATUS:
+			return new ReadDiscreteInputsRequest(slaveId, start, length);
+		case RegisterRange.HOLDING_REGISTER:
+			return new ReadHoldingRegistersRequest(slaveId, start, length);
+		case RegisterRange.INPUT_REGISTER:
+			return new ReadInputRegistersRequest(slaveId, start, length);
+		default:
+			throw new ModbusTransportException("invalid register range " + range);
+		}
+	}
+}
@@ -0,0 +1,523 @@
+package modbus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.modbus4j.ModbusMaster;
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+import com.serotonin.modbus4j.msg.ModbusRequest;
+import com.serotonin.modbus4j.msg.ModbusResponse;
+
+/*
+ * The requests waiting for a connection's master, in order of priority.
+ *
+ * Each socket sends them one at a time: writes first, then on-demand reads,
+ * then fast polls, then slow polls, and in the order they were submitted
+ * within each class. A write therefore waits for at most the one transaction
+ * already on the wire. Each socket of a blocking master has a worker thread
+ * of its own. Connections that share a master also share its queues, so the
+ * order holds across them.
+ *
+ * A master that matches responses by transaction id, or a pool of such
+ * sockets, keeps its own queue and sends from it without holding a thread
+ * per request.
+ *
+ * If the endpoint has a rate limit, every request waits for its slot in the
+ * link's timer before it is sent. Connections that share the endpoint share
+ * its limit.
+ *
+ * Submitting never blocks. The caller gets the transaction, and either
+ * waits for it or has a callback run once it completed.
+ *
+ * */
+class RequestQueue {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(RequestQueue.class);
+	}
+
+	static final String STAT_QUEUE_DEPTH = "request queue depth";
+	static final String STAT_WRITE_WAIT = "last write wait (ms)";
+	static final String STAT_RATE_LIMIT_DELAY = "rate limit delay (ms)";
+
+	enum Priority {
+		WRITE, READ, FAST_POLL, SLOW_POLL;
+
+		// polls at up to this interval count as fast
+		static final long FAST_POLL_MAX_INTERVAL_MS = 2000;
+
+		static Priority forPoll(PollGroup group) {
+			return group.intervalMs <= FAST_POLL_MAX_INTERVAL_MS ? FAST_POLL : SLOW_POLL;
+		}
+	}
+
+	/*
+	 * A request and, once it completed, its outcome.
+	 */
+	static class Transaction implements Comparable<Transaction> {
+		private static final int QUEUED = 0;
+		private static final int SENDING = 1;
+		private static final int DONE = 2;
+
+		final ModbusRequest request;
+		final Priority priority;
+		// 0 and -1 for the master's
+		final int timeout;
+		final int retries;
+		// the rate limit of the endpoint it goes to, or null
+		final RateLimiter limiter;
+		// orders the transactions of one priority, also across the connections of a shared master
+		private static final AtomicLong SEQUENCE = new AtomicLong();
+
+		private final long sequence = SEQUENCE.incrementAndGet();
+		private final long submitted = System.nanoTime();
+		private final AtomicInteger state = new AtomicInteger(QUEUED);
+		private final CountDownLatch done = new CountDownLatch(1);
+		// null once the transaction completed
+		private List<Runnable> callbacks = new ArrayList<Runnable>();
+
+		private volatile ModbusResponse response;
+		private volatile ModbusTransportException error;
+		// wall clock time the request was sent
+		private volatile long requestTime;
+		private volatile long sentNanos;
+		private volatile long elapsedNanos;
+
+		Transaction(ModbusRequest request, Priority priority, int timeout, int retries) {
+			this(request, priority, timeout, retries, null);
+		}
+
+		Transaction(ModbusRequest request, Priority priority, int timeout, int retries, RateLimiter limiter) {
+			this.request = request;
+			this.priority = priority;
+			this.timeout = timeout;
+			this.retries = retries;
+			this.limiter = limiter;
+		}
+
+		@Override
+		public int compareTo(Transaction other) {
+			int c = priority.compareTo(other.priority);
+			return c != 0 ? c : Long.compare(sequence, other.sequence);
+		}
+
+		/**
+		 * Waits for the transaction to complete.
+		 *
+		 * @return the response
+		 */
+		ModbusResponse await() throws ModbusTransportException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ModbusTransportException(e, request.getSlaveId());
+			}
+			if (error != null) {
+				throw error;
+			}
+			return response;
+		}
+
+		/**
+		 * Waits for the transaction to complete, for at most the given time.
+		 * A request still waiting in the queue by then is cancelled.
+		 *
+		 * @return the response
+		 */
+		ModbusResponse await(long timeout, TimeUnit unit) throws ModbusTransportException {
+			try {
+				if (!done.await(timeout, unit)) {
+					cancel("timed out in the request queue");
+					if (!isDone()) {
+						throw new ModbusTransportException("timed out waiting for the response", request.getSlaveId());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ModbusTransportException(e, request.getSlaveId());
+			}
+			return await();
+		}
+
+		boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		/*
+		 * Runs the callback once the transaction completed, on the thread that
+		 * completed it, or right away if it already did. Callbacks must not
+		 * block.
+		 */
+		void whenDone(Runnable callback) {
+			synchronized (this) {
+				if (callbacks != null) {
+					callbacks.add(callback);
+					return;
+				}
+			}
+			callback.run();
+		}
+
+		/**
+		 * Cancels the request unless it is already being sent.
+		 *
+		 * @return true if it was cancelled
+		 */
+		boolean cancel() {
+			return cancel("request cancelled");
+		}
+
+		private boolean cancel(String reason) {
+			if (!state.compareAndSet(QUEUED, DONE)) {
+				return false;
+			}
+			fail(new ModbusTransportException(reason, request.getSlaveId()));
+			return true;
+		}
+
+		long getRequestTime() {
+			return requestTime;
+		}
+
+		long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		long getWaitNanos() {
+			return System.nanoTime() - submitted - elapsedNanos;
+		}
+
+		/**
+		 * Takes the transaction out of the queue to send it.
+		 *
+		 * @return false if the transaction was cancelled
+		 */
+		boolean start() {
+			return state.compareAndSet(QUEUED, SENDING);
+		}
+
+		/*
+		 * Books the slot of a started transaction in its rate limit.
+		 *
+		 * @return the nanoseconds until it may be sent
+		 */
+		long reserveSlot() {
+			return limiter != null && limiter.isLimited() ? limiter.reserve(System.nanoTime()) : 0;
+		}
+
+		/*
+		 * Called when the request goes out.
+		 */
+		void sending() {
+			requestTime = System.currentTimeMillis();
+			sentNanos = System.nanoTime();
+		}
+
+		/*
+		 * Completes a transaction that was sent without waiting for it, on the
+		 * thread that got its outcome.
+		 */
+		void completed(ModbusResponse response, ModbusTransportException error) {
+			elapsedNanos = System.nanoTime() - sentNanos;
+			this.response = response;
+			this.error = error;
+			complete();
+		}
+
+		private void send(ModbusMaster master) {
+			try {
+				if (master == null) {
+					throw new ModbusTransportException("connection is down", request.getSlaveId());
+				}
+				sending();
+				try {
+					if (master instanceof TimedMaster && (timeout > 0 || retries >= 0)) {
+						response = ((TimedMaster) master).send(request, timeout > 0 ? timeout : master.getTimeout(),
+								retries >= 0 ? retries : master.getRetries());
+					} else {
+						response = master.send(request);
+					}
+				} finally {
+					elapsedNanos = System.nanoTime() - sentNanos;
+				}
+			} catch (ModbusTransportException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new ModbusTransportException(e, request.getSlaveId());
+			}
+		}
+
+		private void fail(ModbusTransportException e) {
+			error = e;
+			complete();
+		}
+
+		private void complete() {
+			state.set(DONE);
+			List<Runnable> l;
+			synchronized (this) {
+				l = callbacks;
+				callbacks = null;
+			}
+			done.countDown();
+			for (Runnable callback : l) {
+				try {
+					callback.run();
+				} catch (RuntimeException e) {
+					LOGGER.error("error in request callback: ", e);
+				}
+			}
+		}
+	}
+
+	/*
+	 * The lanes of one master, one per socket. Each lane sends its
+	 * transactions one at a time, on a worker thread of its own, so a master
+	 * that stalls holds up only its own requests and never the other
+	 * endpoints'. The worker ends after a while without requests. A
+	 * transaction waiting for its rate limit slot waits in the timer, not on
+	 * the worker.
+	 */
+	abstract static class Endpoint {
+		private final LinkExecutors executors;
+		private final ConcurrentMap<Integer, Lane> lanes = new ConcurrentHashMap<Integer, Lane>();
+		// of all requests to the endpoint, whichever connection they came from
+		final RateLimiter limiter = new RateLimiter();
+
+		Endpoint(LinkExecutors executors) {
+			this.executors = executors;
+		}
+
+		/**
+		 * @return the master to send the next transaction on, or null while
+		 *         the connection is down
+		 */
+		abstract ModbusMaster getMaster();
+
+		/*
+		 * The lock that requests on the master are sent under, unless the
+		 * master takes concurrent requests.
+		 */
+		abstract Object getSendLock();
+
+		/**
+		 * @param timeout
+		 *            the timeout of the request, 0 for the master's
+		 * @param retries
+		 *            the retries of the request, -1 for the master's
+		 */
+		Transaction submit(ModbusRequest request, Priority priority, int timeout, int retries) {
+			Transaction t = new Transaction(request, priority, timeout, retries, limiter);
+			ModbusMaster master = getMaster();
+			// a pool of sockets that match responses by transaction id is served like one of them
+			ModbusMaster socket = master instanceof PooledMaster ? ((PooledMaster) master).socket(request.getSlaveId())
+					: master;
+			if (socket instanceof MbapMaster) {
+				// it books the rate limit slot when the transaction leaves its queue
+				((MbapMaster) socket).submit(t);
+				return t;
+			}
+			int index = master instanceof PooledMaster ? ((PooledMaster) master).socketFor(request.getSlaveId()) : 0;
+			Lane lane = lanes.get(index);
+			if (lane == null) {
+				lanes.putIfAbsent(index, new Lane());
+				lane = lanes.get(index);
+			}
+			lane.add(t);
+			return t;
+		}
+
+		int size() {
+			int size = 0;
+			for (Lane lane : lanes.values()) {
+				size += lane.queue.size();
+			}
+			return size;
+		}
+
+		/*
+		 * The queue of one socket.
+		 */
+		private class Lane implements Runnable {
+			private final PriorityBlockingQueue<Transaction> queue = new PriorityBlockingQueue<Transaction>();
+			private final Executor worker = executors.newRequestWorker();
+			// true while the lane is queued, running, or waiting for a slot
+			private boolean scheduled;
+			// a started transaction whose slot comes up later, only touched by the worker
+			private Transaction reserved;
+
+			void add(Transaction t) {
+				queue.add(t);
+				synchronized (this) {
+					if (scheduled) {
+						return;
+					}
+					scheduled = true;
+				}
+				worker.execute(this);
+			}
+
+			private void done() {
+				synchronized (this) {
+					scheduled = false;
+				}
+				// a transaction added after the last poll found the lane still scheduled
+				if (!queue.isEmpty()) {
+					synchronized (this) {
+						if (scheduled) {
+							return;
+						}
+						scheduled = true;
+					}
+					worker.execute(this);
+				}
+			}
+
+			@Override
+			public void run() {
+				while (true) {
+					Transaction t = reserved;
+					reserved = null;
+					if (t == null) {
+						t = next();
+						if (t == null) {
+							break;
+						}
+						long delay = t.reserveSlot();
+						if (delay > 0) {
+							reserved = t;
+							try {
+								executors.timer.schedule(new Runnable() {
+									@Override
+									public void run() {
+										worker.execute(Lane.this);
+									}
+								}, delay, TimeUnit.NANOSECONDS);
+								return;
+							} catch (RejectedExecutionException e) {
+								// send it now rather than not at all
+								reserved = null;
+							}
+						}
+					}
+					send(t);
+				}
+				done();
+			}
+
+			private Transaction next() {
+				for (Transaction t = queue.poll(); t != null; t = queue.poll()) {
+					if (t.start()) {
+						return t;
+					}
+				}
+				return null;
+			}
+
+			private void send(Transaction t) {
+				ModbusMaster master = getMaster();
+				if (master instanceof PooledMaster) {
+					// the pool keeps each socket to one transaction at a time
+					t.send(master);
+				} else {
+					// the send lock keeps other connections off a shared master meanwhile;
+					// a master replaced mid-transaction fails it, like a lost connection
+					synchronized (getSendLock()) {
+						t.send(master);
+					}
+				}
+				// callbacks run outside the locks
+				t.complete();
+			}
+		}
+	}
+
+	private final ModbusConnection conn;
+	// sampled into the statistics on a period rather than after every request
+	private volatile long lastWriteWaitMs = -1;
+	private ScheduledFuture<?> sampling;
+
+	RequestQueue(ModbusConnection conn) {
+		this.conn = conn;
+	}
+
+	/**
+	 * @param timeout
+	 *            the timeout of the request, 0 for the master's
+	 * @param retries
+	 *            the retries of the request, -1 for the master's
+	 */
+	Transaction submit(ModbusRequest request, Priority priority, int timeout, int retries) {
+		final Transaction t = conn.getEndpoint().submit(request, priority, timeout, retries);
+		if (priority == Priority.WRITE) {
+			t.whenDone(new Runnable() {
+				@Override
+				public void run() {
+					long wait = TimeUnit.NANOSECONDS.toMillis(t.getWaitNanos());
+					lastWriteWaitMs = wait;
+					LOGGER.debug(conn.node.getName() + ": write waited " + wait + " ms");
+				}
+			});
+		}
+		return t;
+	}
+
+	/*
+	 * Publishes the queue depth, the last write wait and the rate limit delay
+	 * every ten seconds, like the poll statistics, until stopSampling().
+	 */
+	synchronized void startSampling() {
+		if (sampling != null) {
+			return;
+		}
+		try {
+			sampling = conn.getTimer().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					sample();
+				}
+			}, 0, PollTask.PUBLISH_PERIOD_NANOS, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug(conn.node.getName() + ": timer is shut down, not sampling the request queue");
+		}
+	}
+
+	synchronized void stopSampling() {
+		if (sampling != null) {
+			sampling.cancel(false);
+			sampling = null;
+		}
+	}
+
+	private void sample() {
+		Statistics stats = conn.getStatistics();
+		stats.set(STAT_QUEUE_DEPTH, size());
+		long wait = lastWriteWaitMs;
+		if (wait >= 0) {
+			stats.set(STAT_WRITE_WAIT, wait);
+		}
+		RateLimiter limiter = conn.getEndpoint().limiter;
+		if (limiter.isLimited()) {
+			stats.set(STAT_RATE_LIMIT_DELAY, limiter.getAverageDelayMs());
+		}
+	}
+
+	int size() {
+		return conn.getEndpoint().size();
+	}
+}
@@ -0,0 +1,42 @@
+package modbus;
+
+import java.util.Arrays;
+
+/*
+ * The most recent response times of a device or an endpoint, and their
+ * percentiles.
+ *
+ * */
+class ResponseTimes {
+	private final long[] samples;
+	private int count;
+	private int next;
+
+	ResponseTimes(int size) {
+		samples = new long[size];
+	}
+
+	synchronized void add(long nanos) {
+		samples[next] = nanos;
+		next = (next + 1) % samples.length;
+		count = Math.min(count + 1, samples.length);
+	}
+
+	synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @param p
+	 *            the percentile, between 0 and 1
+	 * @return the response time in nanoseconds, 0 if there is none
+	 */
+	synchronized long percentile(double p) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		return sorted[Math.max(0, Math.min(count - 1, (int) Math.ceil(p * count) - 1))];
+	}
+}
@@ -106,6 +106,7 @@ public class SerialConn extends ModbusConnection {
 				new Parameter(ATTR_DISCARD_DATA_DELAY, ValueType.NUMBER, node.getAttribute(ATTR_DISCARD_DATA_DELAY)));
 		act.addParameter(new Parameter(ATTR_USE_MULTIPLE_WRITE_COMMAND, ValueType.makeEnum(MULTIPLE_WRITE_COMMAND_OPTIONS),
 				node.getAttribute(ATTR_USE_MULTIPLE_WRITE_COMMAND)));
+		addRateLimitParameters(act, node);
 
 		return act;
 	}
@@ -136,6 +137,7 @@ public class SerialConn extends ModbusConnection {
 
 		readSerialAttributes();
 		readMasterAttributes();
+		costModel.setSerial(baudRate, dataBits, stopBits, parity != 0, transType == SerialTransportType.ASCII);
 
 		SerialPortWrapper wrapper = new SerialPortWrapperImpl(commPortId, baudRate, dataBits, stopBits, parity);
 		switch (transType) {
@@ -29,6 +29,7 @@ import org.dsa.iot.dslink.util.handler.Handler;
 import com.serotonin.modbus4j.ModbusMaster;
 import com.serotonin.modbus4j.locator.NumericLocator;
 import com.serotonin.modbus4j.locator.StringLocator;
+import com.serotonin.modbus4j.code.FunctionCode;
 import com.serotonin.modbus4j.msg.ModbusRequest;
 import com.serotonin.modbus4j.msg.WriteCoilRequest;
 import com.serotonin.modbus4j.msg.WriteCoilsRequest;
@@ -48,6 +49,7 @@ public class SlaveFolder {
 	static final String ACTION_REMOVE = "remove";
 	static final String ACTION_RENAME = "rename";
 	static final String ACTION_ADD_FOLDER = "add folder";
+	static final String ACTION_RESET_LIMITS = "reset learned limits";
 	static final String ACTION_EXPORT = "export";
     static final String ACTION_IMPORT = "import folder";
 
@@ -62,6 +64,10 @@ public class SlaveFolder {
 	static final String ATTR_SCALING = "scaling";
 	static final String ATTR_SCALING_OFFSET = "scaling offset";
 	static final String ATTR_WRITBLE = "writable";
+	static final String ATTR_POLL_GROUP = "poll group";
+	static final String ATTR_DEADBAND = "deadband";
+	static final String ATTR_DEADBAND_PERCENT = "deadband percent";
+	static final String ATTR_MAX_SILENCE = "max silence";
 
 	static final String ATTR_RESTORE_TYPE = "restoreType";
 	static final String ATTR_RESTORE_FOLDER = "folder";
@@ -69,7 +75,7 @@ public class SlaveFolder {
 
 	static final String NODE_STATUS = "Device Status";
 	static final String NODE_STATUS_SETTING_UP = "Setting up device";
-	static final String NODE_STATUS_PING_FAILED = "Device ping failed";
+	static final String NODE_STATUS_NOT_RESPONDING = "Device not responding";
 	static final String NODE_STATUS_CONN_DOWN = "Connection Down";
 	static final String NODE_STATUS_READY = "Ready";
 
@@ -122,6 +128,10 @@ public class SlaveFolder {
 		act.addParameter(new Parameter(ATTR_SCALING, ValueType.NUMBER, new Value(1)));
 		act.addParameter(new Parameter(ATTR_SCALING_OFFSET, ValueType.NUMBER, new Value(0)));
 		act.addParameter(new Parameter(ATTR_WRITBLE, ValueType.BOOL, new Value(false)));
+		act.addParameter(new Parameter(ATTR_POLL_GROUP, ValueType.STRING));
+		act.addParameter(new Parameter(ATTR_DEADBAND, ValueType.NUMBER, new Value(0)));
+		act.addParameter(new Parameter(ATTR_DEADBAND_PERCENT, ValueType.NUMBER, new Value(0)));
+		act.addParameter(new Parameter(ATTR_MAX_SILENCE, ValueType.NUMBER, new Value(0)));
 
 		return act;
 	}
@@ -169,7 +179,8 @@ public class SlaveFolder {
 					}
 				}
 			} else if (child.getAction() == null && !(root == this
-					&& (NODE_STATUS.equals(child.getName()) || ModbusConnection.NODE_STATUS.equals(child.getName())))) {
+					&& (NODE_STATUS.equals(child.getName()) || ModbusConnection.NODE_STATUS.equals(child.getName())
+							|| Statistics.NODE_STATISTICS.equals(child.getName())))) {
 				node.removeChild(child, false);
 			}
 		}
@@ -186,8 +197,12 @@ public class SlaveFolder {
 	protected class RenameHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
 			String newname = event.getParameter(ATTR_NAME, ValueType.STRING).getString();
+			setPollGroupName(node, event.getParameter(ATTR_POLL_GROUP, new Value("")).getString());
+			reloadSettings();
 			if (newname.length() > 0 && !newname.equals(node.getName()))
 				rename(newname);
+			else
+				makeEditAction();
 		}
 	}
 
@@ -198,10 +213,33 @@ public class SlaveFolder {
 	}
 
 	protected void remove() {
+		forgetPoints(node);
 		node.clearChildren();
 		node.getParent().removeChild(node, false);
 	}
 
+	/*
+	 * Drops the compiled state of every point below the node, like removing
+	 * each point on its own would.
+	 */
+	private void forgetPoints(Node parent) {
+		Map<String, Node> children = parent.getChildren();
+		if (children == null) {
+			return;
+		}
+		for (Node child : children.values()) {
+			Value restoreType = child.getAttribute(ATTR_RESTORE_TYPE);
+			if (restoreType == null) {
+				continue;
+			}
+			if (ATTR_RESTORE_FOLDER.equals(restoreType.getString())) {
+				forgetPoints(child);
+			} else if (ATTR_RESTORE_POINT.equals(restoreType.getString())) {
+				forgetPoint(child);
+			}
+		}
+	}
+
 	protected void rename(String newname) {
 		duplicate(newname);
 		remove();
@@ -222,7 +260,12 @@ public class SlaveFolder {
 	void makeEditAction() {
 		Action act = new Action(Permission.READ, new RenameHandler());
 		act.addParameter(new Parameter("name", ValueType.STRING, new Value(node.getName())));
-		node.createChild(ACTION_EDIT, true).setAction(act).build().setSerializable(false);
+		act.addParameter(new Parameter(ATTR_POLL_GROUP, ValueType.STRING, node.getAttribute(ATTR_POLL_GROUP)));
+		Node anode = node.getChild(ACTION_EDIT, true);
+		if (anode == null)
+			node.createChild(ACTION_EDIT, true).setAction(act).build().setSerializable(false);
+		else
+			anode.setAction(act);
 	}
 
     private void makeExportAction(final Node fnode) {
@@ -356,6 +399,8 @@ public class SlaveFolder {
 			pnode.setAttribute(ATTR_SCALING, new Value(scaling));
 			pnode.setAttribute(ATTR_SCALING_OFFSET, new Value(addscale));
 			pnode.setAttribute(ATTR_WRITBLE, new Value(writable));
+			setPollGroupName(pnode, event.getParameter(ATTR_POLL_GROUP, new Value("")).getString());
+			setFilterAttributes(pnode, event);
 			setupPointActions(pnode);
 			conn.getLink().setupPoint(pnode, root);
 			pnode.setAttribute(ATTR_RESTORE_TYPE, new Value("point"));
@@ -384,6 +429,12 @@ public class SlaveFolder {
 		act.addParameter(
 				new Parameter(ATTR_SCALING_OFFSET, ValueType.NUMBER, pointNode.getAttribute(ATTR_SCALING_OFFSET)));
 		act.addParameter(new Parameter(ATTR_WRITBLE, ValueType.BOOL, pointNode.getAttribute(ATTR_WRITBLE)));
+		act.addParameter(new Parameter(ATTR_POLL_GROUP, ValueType.STRING, pointNode.getAttribute(ATTR_POLL_GROUP)));
+		act.addParameter(new Parameter(ATTR_DEADBAND, ValueType.NUMBER, getFilterAttribute(pointNode, ATTR_DEADBAND)));
+		act.addParameter(new Parameter(ATTR_DEADBAND_PERCENT, ValueType.NUMBER,
+				getFilterAttribute(pointNode, ATTR_DEADBAND_PERCENT)));
+		act.addParameter(
+				new Parameter(ATTR_MAX_SILENCE, ValueType.NUMBER, getFilterAttribute(pointNode, ATTR_MAX_SILENCE)));
 		anode = pointNode.getChild(ACTION_EDIT, true);
 		if (anode == null)
 			pointNode.createChild(ACTION_EDIT, true).setAction(act).build().setSerializable(false);
@@ -404,6 +455,8 @@ public class SlaveFolder {
 			pointNode.setWritable(Writable.WRITE);
 			pointNode.getListener().setValueHandler(new SetHandler(pointNode));
 		}
+
+		compilePoint(pointNode);
 	}
 
 	protected class CopyPointHandler implements Handler<ActionResult> {
@@ -432,6 +485,10 @@ public class SlaveFolder {
 		pointNodeCopy.setAttribute(ATTR_SCALING, pointNode.getAttribute(ATTR_SCALING));
 		pointNodeCopy.setAttribute(ATTR_SCALING_OFFSET, pointNode.getAttribute(ATTR_SCALING_OFFSET));
 		pointNodeCopy.setAttribute(ATTR_WRITBLE, pointNode.getAttribute(ATTR_WRITBLE));
+		setPollGroupName(pointNodeCopy, getPollGroupName(pointNode));
+		pointNodeCopy.setAttribute(ATTR_DEADBAND, getFilterAttribute(pointNode, ATTR_DEADBAND));
+		pointNodeCopy.setAttribute(ATTR_DEADBAND_PERCENT, getFilterAttribute(pointNode, ATTR_DEADBAND_PERCENT));
+		pointNodeCopy.setAttribute(ATTR_MAX_SILENCE, getFilterAttribute(pointNode, ATTR_MAX_SILENCE));
 		pointNodeCopy.setAttribute(ATTR_RESTORE_TYPE, new Value("point"));
 		setupPointActions(pointNodeCopy);
 		conn.getLink().setupPoint(pointNodeCopy, root);
@@ -476,9 +533,11 @@ public class SlaveFolder {
 			int bit = event.getParameter(ATTR_BIT, new Value(-1)).getNumber().intValue();
 			double scaling = event.getParameter(ATTR_SCALING, ValueType.NUMBER).getNumber().doubleValue();
 			double addscale = event.getParameter(ATTR_SCALING_OFFSET, ValueType.NUMBER).getNumber().doubleValue();
+			String pollGroup = event.getParameter(ATTR_POLL_GROUP, new Value("")).getString();
 
 			if (!name.equals(pointNode.getName())) {
 				Node newnode = copyPoint(pointNode, name);
+				forgetPoint(pointNode);
 				node.removeChild(pointNode, false);
 				pointNode = newnode;
 			}
@@ -490,6 +549,8 @@ public class SlaveFolder {
 			pointNode.setAttribute(ATTR_SCALING, new Value(scaling));
 			pointNode.setAttribute(ATTR_SCALING_OFFSET, new Value(addscale));
 			pointNode.setAttribute(ATTR_WRITBLE, new Value(writable));
+			setPollGroupName(pointNode, pollGroup);
+			setFilterAttributes(pointNode, event);
 			setupPointActions(pointNode);
 			conn.getLink().setupPoint(pointNode, root);
 			pointNode.setAttribute(ATTR_RESTORE_TYPE, new Value("point"));
@@ -504,6 +565,7 @@ public class SlaveFolder {
 		}
 
 		public void handle(ActionResult event) {
+			forgetPoint(toRemove);
 			node.removeChild(toRemove, false);
 		}
 	}
@@ -577,9 +639,7 @@ public class SlaveFolder {
 					if (bvalues.length < 1) {
 						throw new RuntimeException("Need to provide at least one value to set");
 					}
-					if (bvalues.length == 1 && !ModbusConnection.MULTIPLE_WRITE_COMMAND_ALWAYS.equals(conn.getUseMultipleWrites())) {
-						requests.add(new WriteCoilRequest(id, offset, bvalues[0]));
-					} else if (bvalues.length > 1 && ModbusConnection.MULTIPLE_WRITE_COMMAND_NEVER.equals(conn.getUseMultipleWrites())) {
+					if (!useMultipleWrite(bvalues.length, FunctionCode.WRITE_COIL, FunctionCode.WRITE_COILS)) {
 						for (int i=0; i<bvalues.length; i++) {
 							requests.add(new WriteCoilRequest(id, offset + i, bvalues[i]));
 						}
@@ -592,9 +652,7 @@ public class SlaveFolder {
 					if (svalues.length < 1) {
 						throw new RuntimeException("Need to provide at least one value to set");
 					}
-					if (svalues.length == 1 && !ModbusConnection.MULTIPLE_WRITE_COMMAND_ALWAYS.equals(conn.getUseMultipleWrites())) {
-						requests.add(new WriteRegisterRequest(id, offset, svalues[0]));
-					} else if (svalues.length > 1 && ModbusConnection.MULTIPLE_WRITE_COMMAND_NEVER.equals(conn.getUseMultipleWrites())) {
+					if (!useMultipleWrite(svalues.length, FunctionCode.WRITE_REGISTER, FunctionCode.WRITE_REGISTERS)) {
 						for (int i=0; i<svalues.length; i++) {
 							requests.add(new WriteRegisterRequest(id, offset + i, svalues[i]));
 						}
@@ -606,17 +664,42 @@ public class SlaveFolder {
 				default:
 					break;
 				}
-				for (ModbusRequest request = requests.poll(); request != null; request = requests.poll()) {
-					root.getMaster().send(request);
-				}
 			} catch (Exception e) {
 				LOGGER.error("Error during set: " + e.getMessage());
 				LOGGER.debug("error: ", e);
 				return;
 			} 
+			sendWrites(requests);
 		}
 	}
 
+	/*
+	 * Sends the device's writes in order, without waiting for them.
+	 */
+	void sendWrites(Queue<ModbusRequest> requests) {
+		root.sendWrites(requests);
+	}
+
+	/*
+	 * Picks single or multiple write requests according to the connection's
+	 * setting, unless the device is known not to support that function.
+	 */
+	private boolean useMultipleWrite(int count, byte singleFunction, byte multipleFunction) {
+		boolean multiple;
+		if (count == 1) {
+			multiple = ModbusConnection.MULTIPLE_WRITE_COMMAND_ALWAYS.equals(conn.getUseMultipleWrites());
+		} else {
+			multiple = !ModbusConnection.MULTIPLE_WRITE_COMMAND_NEVER.equals(conn.getUseMultipleWrites());
+		}
+		DeviceLimits limits = getLimits();
+		if (multiple && !limits.isSupported(multipleFunction)) {
+			return false;
+		} else if (!multiple && !limits.isSupported(singleFunction) && limits.isSupported(multipleFunction)) {
+			return true;
+		}
+		return multiple;
+	}
+
 	private static boolean[] makeBoolArr(JsonArray jarr) throws Exception {
 		boolean[] retval = new boolean[jarr.size()];
 		for (int i = 0; i < jarr.size(); i++) {
@@ -719,4 +802,52 @@ public class SlaveFolder {
 	void checkDeviceConnected() {
 		root.checkDeviceConnected();
 	}
+
+	/*
+	 * Updates the device status from the outcome of a request to it.
+	 */
+	void recordOutcome(boolean answered) {
+		root.recordOutcome(answered);
+	}
+
+	void compilePoint(Node pointNode) {
+		root.compilePoint(pointNode);
+	}
+
+	void forgetPoint(Node pointNode) {
+		root.forgetPoint(pointNode);
+	}
+
+	void reloadSettings() {
+		root.reloadSettings();
+	}
+
+	DeviceLimits getLimits() {
+		return root.getLimits();
+	}
+
+	private static Value getFilterAttribute(Node pointNode, String name) {
+		Value value = pointNode.getAttribute(name);
+		return value != null ? value : new Value(0);
+	}
+
+	private static void setFilterAttributes(Node pointNode, ActionResult event) {
+		pointNode.setAttribute(ATTR_DEADBAND, event.getParameter(ATTR_DEADBAND, new Value(0)));
+		pointNode.setAttribute(ATTR_DEADBAND_PERCENT, event.getParameter(ATTR_DEADBAND_PERCENT, new Value(0)));
+		pointNode.setAttribute(ATTR_MAX_SILENCE, event.getParameter(ATTR_MAX_SILENCE, new Value(0)));
+	}
+
+	static String getPollGroupName(Node n) {
+		Value group = n.getAttribute(ATTR_POLL_GROUP);
+		return group != null ? group.getString() : null;
+	}
+
+	static void setPollGroupName(Node n, String group) {
+		group = PollGroup.normalize(group);
+		if (group != null) {
+			n.setAttribute(ATTR_POLL_GROUP, new Value(group));
+		} else {
+			n.removeAttribute(ATTR_POLL_GROUP);
+		}
+	}
 }
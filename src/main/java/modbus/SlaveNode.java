@@ -1,10 +1,16 @@
 package modbus;
 
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Executor;
 
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
@@ -20,14 +26,14 @@ import org.slf4j.LoggerFactory;
 import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.dslink.util.handler.Handler;
 
-import com.serotonin.modbus4j.BatchRead;
-import com.serotonin.modbus4j.BatchResults;
 import com.serotonin.modbus4j.ExceptionResult;
 import com.serotonin.modbus4j.ModbusMaster;
-import com.serotonin.modbus4j.exception.ErrorResponseException;
+import com.serotonin.modbus4j.code.ExceptionCode;
 import com.serotonin.modbus4j.exception.ModbusTransportException;
-import com.serotonin.modbus4j.locator.BaseLocator;
 import com.serotonin.modbus4j.locator.BinaryLocator;
+import com.serotonin.modbus4j.msg.ModbusRequest;
+import com.serotonin.modbus4j.msg.ModbusResponse;
+import com.serotonin.modbus4j.msg.ReadResponse;
 
 /*
  * A regular class for the multiple tier design.
@@ -47,6 +53,16 @@ public class SlaveNode extends SlaveFolder {
 
 	private static final int BITS_IN_REGISTER = 16;
 
+	// the outcomes of reading one block
+	private static final int READ_OK = 0;
+	private static final int READ_PARTIAL = 1;
+	private static final int READ_FAILED = 2;
+	private static final int READ_ABORTED = 3;
+
+	static final String STAT_QUARANTINED_POINTS = "quarantined points";
+	static final String STAT_CIRCUIT_BREAKER = "circuit breaker";
+	static final String STAT_TIMEOUT = "timeout (ms)";
+
 	static {
 		LOGGER = LoggerFactory.getLogger(SlaveNode.class);
 	}
@@ -54,8 +70,36 @@ public class SlaveNode extends SlaveFolder {
 	long intervalInMs;
 
 	Node statnode;
+	private Statistics statistics;
+
+	volatile int slaveId;
+	volatile boolean zeroOnFailedPoll;
+	volatile boolean useBatchPolling;
+	volatile boolean contiguousBatchRequestsOnly;
+	volatile boolean adaptivePolling;
+	volatile long adaptiveMaxIntervalMs;
+	volatile OverrunPolicy overrunPolicy;
+	volatile IllegalAddresses illegalAddresses;
+	volatile long probeAfterSilenceMs;
+	volatile String probeRegister;
+	volatile int breakerThreshold;
 
 	private final ConcurrentMap<Node, Boolean> subscribed = new ConcurrentHashMap<Node, Boolean>();
+	private final ConcurrentMap<Node, PointDescriptor> descriptors = new ConcurrentHashMap<Node, PointDescriptor>();
+	private final ConcurrentMap<Node, PointState> pointStates = new ConcurrentHashMap<Node, PointState>();
+	private final Quarantine quarantine = new Quarantine();
+	private final DeviceLimits limits;
+	private final Queue<Queue<ModbusRequest>> writes = new ArrayDeque<Queue<ModbusRequest>>();
+	private boolean writing;
+	private final DeviceHealth health = new DeviceHealth();
+	private final CircuitBreaker breaker = new CircuitBreaker();
+	private final DeviceTimeout timeout = new DeviceTimeout();
+
+	volatile Map<String, PollGroup> pollGroups;
+	private final List<PollTask> pollTasks = new ArrayList<PollTask>();
+
+	private final Object planLock = new Object();
+	private volatile Map<String, ReadPlan> readPlans = new ConcurrentHashMap<String, ReadPlan>();
 
 	SlaveNode(ModbusConnection conn, Node node) {
 		super(conn, node);
@@ -69,23 +113,167 @@ public class SlaveNode extends SlaveFolder {
 					.setValue(new Value(NODE_STATUS_SETTING_UP)).build();
 		}
 
+		limits = new DeviceLimits(node);
 		init();
 	}
 
 	void init() {
+		readDeviceAttributes();
+		invalidateReadPlan();
 		checkDeviceConnected();
 
-		this.intervalInMs = node.getAttribute(ModbusConnection.ATTR_POLLING_INTERVAL).getNumber().longValue();
-
 		makeEditAction();
+		makeResetLimitsAction();
+	}
+
+	void readDeviceAttributes() {
+		intervalInMs = node.getAttribute(ModbusConnection.ATTR_POLLING_INTERVAL).getNumber().longValue();
+		Value groups = node.getAttribute(ModbusConnection.ATTR_POLL_GROUPS);
+		Value aligned = node.getAttribute(ModbusConnection.ATTR_ALIGNED_POLLING);
+		Map<String, PollGroup> parsed = PollGroup.parse(groups != null ? groups.getString() : null, intervalInMs,
+				aligned != null && aligned.getBool());
+		if (!parsed.equals(pollGroups)) {
+			pollGroups = parsed;
+		}
+		slaveId = Util.getIntValue(node.getAttribute(ModbusConnection.ATTR_SLAVE_ID));
+		zeroOnFailedPoll = node.getAttribute(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL).getBool();
+		useBatchPolling = node.getAttribute(ModbusConnection.ATTR_USE_BATCH_POLLING).getBool();
+		contiguousBatchRequestsOnly = node.getAttribute(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY)
+				.getBool();
+		Value adaptive = node.getAttribute(ModbusConnection.ATTR_ADAPTIVE_POLLING);
+		adaptivePolling = adaptive != null && adaptive.getBool();
+		Value maxInterval = node.getAttribute(ModbusConnection.ATTR_ADAPTIVE_MAX_INTERVAL);
+		adaptiveMaxIntervalMs = maxInterval != null ? maxInterval.getNumber().longValue()
+				: (long) (ModbusConnection.DEFAULT_ADAPTIVE_MAX_INTERVAL * 1000);
+		Value policy = node.getAttribute(ModbusConnection.ATTR_OVERRUN_POLICY);
+		overrunPolicy = OverrunPolicy.parse(policy != null ? policy.getString() : null);
+		Value illegal = node.getAttribute(ModbusConnection.ATTR_ILLEGAL_ADDRESSES);
+		illegalAddresses = IllegalAddresses.parse(illegal != null ? illegal.getString() : null);
+		Value silence = node.getAttribute(ModbusConnection.ATTR_PROBE_AFTER_SILENCE);
+		probeAfterSilenceMs = silence != null ? silence.getNumber().longValue()
+				: (long) (DeviceHealth.DEFAULT_PROBE_AFTER_SILENCE * 1000);
+		Value probe = node.getAttribute(ModbusConnection.ATTR_PROBE_REGISTER);
+		probeRegister = probe != null ? probe.getString() : DeviceHealth.DEFAULT_PROBE_REGISTER;
+		Value threshold = node.getAttribute(ModbusConnection.ATTR_BREAKER_THRESHOLD);
+		breakerThreshold = threshold != null ? threshold.getNumber().intValue() : CircuitBreaker.DEFAULT_THRESHOLD;
+
+		Value deviceTimeout = node.getAttribute(ModbusConnection.ATTR_DEVICE_TIMEOUT);
+		Value deviceRetries = node.getAttribute(ModbusConnection.ATTR_DEVICE_RETRIES);
+		Value auto = node.getAttribute(ModbusConnection.ATTR_AUTO_TIMEOUT);
+		Value factor = node.getAttribute(ModbusConnection.ATTR_AUTO_TIMEOUT_FACTOR);
+		Value min = node.getAttribute(ModbusConnection.ATTR_AUTO_TIMEOUT_MIN);
+		timeout.configure(deviceTimeout != null ? deviceTimeout.getNumber().intValue() : 0,
+				deviceRetries != null ? deviceRetries.getNumber().intValue() : -1, auto != null && auto.getBool(),
+				factor != null ? factor.getNumber().doubleValue() : DeviceTimeout.DEFAULT_FACTOR,
+				min != null ? min.getNumber().intValue() : DeviceTimeout.DEFAULT_MIN_MS);
+	}
+
+	/*
+	 * Re-reads the device attributes after an edit. The slave id is part of
+	 * every locator, so all point descriptors are compiled again. The running
+	 * poll tasks hold the groups they were scheduled with, so they are
+	 * scheduled again if the groups changed.
+	 */
+	@Override
+	void reloadSettings() {
+		Map<String, PollGroup> groups = pollGroups;
+		readDeviceAttributes();
+		for (Node pnode : descriptors.keySet()) {
+			compilePoint(pnode);
+		}
+		invalidateReadPlan();
+		if (groups != pollGroups) {
+			restartPolling(conn.getLink().pollScheduler);
+		}
+	}
+
+	@Override
+	void compilePoint(Node pointNode) {
+		PointDescriptor descriptor = PointDescriptor.compile(slaveId, pointNode, resolvePollGroup(pointNode));
+		if (descriptor != null) {
+			descriptors.put(pointNode, descriptor);
+			pointStates.put(pointNode, new PointState());
+			quarantine.release(pointNode);
+		} else {
+			descriptors.remove(pointNode);
+			pointStates.remove(pointNode);
+		}
+		invalidateReadPlan();
+	}
+
+	@Override
+	void forgetPoint(Node pointNode) {
+		descriptors.remove(pointNode);
+		pointStates.remove(pointNode);
+		quarantine.release(pointNode);
+		invalidateReadPlan();
+	}
+
+	/*
+	 * A point belongs to the group set on itself or on its closest folder.
+	 */
+	private String resolvePollGroup(Node pointNode) {
+		for (Node n = pointNode; n != null && n != node; n = n.getParent()) {
+			String group = PollGroup.normalize(getPollGroupName(n));
+			if (group != null) {
+				return group;
+			}
+		}
+		return PollGroup.DEFAULT;
+	}
+
+	/*
+	 * Groups are matched by name, so a task that is still running with the
+	 * groups of before an edit reads the points of its group's name.
+	 */
+	private boolean inPollGroup(PointDescriptor descriptor, PollGroup group) {
+		String name = pollGroups.containsKey(descriptor.pollGroup) ? descriptor.pollGroup : PollGroup.DEFAULT;
+		return name.equals(group.name);
+	}
+
+	void startPolling(PollScheduler scheduler) {
+		synchronized (pollTasks) {
+			if (!pollTasks.isEmpty()) {
+				return;
+			}
+			for (PollGroup group : pollGroups.values()) {
+				pollTasks.add(scheduler.schedule(this, group));
+			}
+		}
+	}
+
+	/*
+	 * Replaces the running poll tasks with tasks of the current groups.
+	 */
+	private void restartPolling(PollScheduler scheduler) {
+		synchronized (pollTasks) {
+			if (pollTasks.isEmpty()) {
+				return;
+			}
+			stopPolling(scheduler);
+			startPolling(scheduler);
+		}
+	}
+
+	void stopPolling(PollScheduler scheduler) {
+		synchronized (pollTasks) {
+			for (PollTask task : pollTasks) {
+				scheduler.cancel(task);
+			}
+			pollTasks.clear();
+		}
 	}
 
 	void addToSub(Node event) {
-		subscribed.put(event, true);
+		if (subscribed.put(event, true) == null) {
+			invalidateReadPlan();
+		}
 	}
 
 	void removeFromSub(Node event) {
-		subscribed.remove(event);
+		if (subscribed.remove(event) != null) {
+			invalidateReadPlan();
+		}
 	}
 
 	Set<Node> getSubscribed() {
@@ -99,6 +287,20 @@ public class SlaveNode extends SlaveFolder {
 	void makeEditAction() {
 		Action act = new Action(Permission.READ, new EditHandler());
 		act.addParameter(new Parameter(ModbusConnection.ATTR_SLAVE_NAME, ValueType.STRING, new Value(node.getName())));
+		addDeviceParameters(act);
+
+		Node anode = node.getChild(ACTION_EDIT, true);
+		if (anode == null)
+			node.createChild(ACTION_EDIT, true).setAction(act).build().setSerializable(false);
+		else
+			anode.setAction(act);
+	}
+
+	/*
+	 * The device's settings, on its edit action and on the edit action of a
+	 * legacy device, with their current values.
+	 */
+	void addDeviceParameters(Action act) {
 		act.addParameter(new Parameter(ModbusConnection.ATTR_SLAVE_ID, ValueType.NUMBER,
 				node.getAttribute(ModbusConnection.ATTR_SLAVE_ID)));
 		double defint = node.getAttribute(ModbusConnection.ATTR_POLLING_INTERVAL).getNumber().doubleValue() / 1000;
@@ -109,16 +311,93 @@ public class SlaveNode extends SlaveFolder {
 				node.getAttribute(ModbusConnection.ATTR_USE_BATCH_POLLING)));
 		act.addParameter(new Parameter(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY, ValueType.BOOL,
 				node.getAttribute(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY)));
+		act.addParameter(new Parameter(ModbusConnection.ATTR_POLL_GROUPS, ValueType.STRING,
+				node.getAttribute(ModbusConnection.ATTR_POLL_GROUPS)).setPlaceHolder("fast=0.1, meters=900 aligned"));
+		act.addParameter(new Parameter(ModbusConnection.ATTR_ALIGNED_POLLING, ValueType.BOOL,
+				node.getAttribute(ModbusConnection.ATTR_ALIGNED_POLLING)));
+		act.addParameter(new Parameter(ModbusConnection.ATTR_ADAPTIVE_POLLING, ValueType.BOOL,
+				node.getAttribute(ModbusConnection.ATTR_ADAPTIVE_POLLING)));
+		Value adaptiveMax = node.getAttribute(ModbusConnection.ATTR_ADAPTIVE_MAX_INTERVAL);
+		act.addParameter(new Parameter(ModbusConnection.ATTR_ADAPTIVE_MAX_INTERVAL, ValueType.NUMBER,
+				adaptiveMax != null ? new Value(adaptiveMax.getNumber().doubleValue() / 1000)
+						: new Value(ModbusConnection.DEFAULT_ADAPTIVE_MAX_INTERVAL)));
+		act.addParameter(new Parameter(ModbusConnection.ATTR_OVERRUN_POLICY,
+				ValueType.makeEnum(Util.enumNames(OverrunPolicy.class)),
+				node.getAttribute(ModbusConnection.ATTR_OVERRUN_POLICY)));
+		act.addParameter(new Parameter(ModbusConnection.ATTR_ILLEGAL_ADDRESSES, ValueType.STRING,
+				node.getAttribute(ModbusConnection.ATTR_ILLEGAL_ADDRESSES)).setPlaceHolder("HOLDING 100-199, INPUT 5"));
+		Value silence = node.getAttribute(ModbusConnection.ATTR_PROBE_AFTER_SILENCE);
+		act.addParameter(new Parameter(ModbusConnection.ATTR_PROBE_AFTER_SILENCE, ValueType.NUMBER,
+				silence != null ? new Value(silence.getNumber().doubleValue() / 1000)
+						: new Value(DeviceHealth.DEFAULT_PROBE_AFTER_SILENCE)));
+		Value probe = node.getAttribute(ModbusConnection.ATTR_PROBE_REGISTER);
+		act.addParameter(new Parameter(ModbusConnection.ATTR_PROBE_REGISTER, ValueType.STRING,
+				probe != null ? probe : new Value(DeviceHealth.DEFAULT_PROBE_REGISTER)));
+		Value threshold = node.getAttribute(ModbusConnection.ATTR_BREAKER_THRESHOLD);
+		act.addParameter(new Parameter(ModbusConnection.ATTR_BREAKER_THRESHOLD, ValueType.NUMBER,
+				threshold != null ? threshold : new Value(CircuitBreaker.DEFAULT_THRESHOLD)));
+		addTimeoutParameters(act, node);
+	}
 
-		Node anode = node.getChild(ACTION_EDIT, true);
+	/*
+	 * Stores the device's settings from an edit action in its attributes.
+	 * They take effect with reloadSettings().
+	 */
+	void readDeviceParameters(ActionResult event) {
+		int slaveid = event.getParameter(ModbusConnection.ATTR_SLAVE_ID, ValueType.NUMBER).getNumber().intValue();
+		intervalInMs = (long) (event.getParameter(ModbusConnection.ATTR_POLLING_INTERVAL, ValueType.NUMBER)
+				.getNumber().doubleValue() * 1000);
+		boolean zerofail = event.getParameter(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL, ValueType.BOOL).getBool();
+		boolean batchpoll = event.getParameter(ModbusConnection.ATTR_USE_BATCH_POLLING, ValueType.BOOL).getBool();
+		boolean contig = event.getParameter(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY, ValueType.BOOL)
+				.getBool();
+		String groups = event.getParameter(ModbusConnection.ATTR_POLL_GROUPS, new Value("")).getString();
+		boolean adaptive = event.getParameter(ModbusConnection.ATTR_ADAPTIVE_POLLING, new Value(false)).getBool();
+		long adaptiveMax = (long) (event.getParameter(ModbusConnection.ATTR_ADAPTIVE_MAX_INTERVAL,
+				new Value(ModbusConnection.DEFAULT_ADAPTIVE_MAX_INTERVAL)).getNumber().doubleValue() * 1000);
+
+		node.setAttribute(ModbusConnection.ATTR_POLL_GROUPS, new Value(groups));
+		node.setAttribute(ModbusConnection.ATTR_ALIGNED_POLLING,
+				event.getParameter(ModbusConnection.ATTR_ALIGNED_POLLING, new Value(false)));
+		node.setAttribute(ModbusConnection.ATTR_ADAPTIVE_POLLING, new Value(adaptive));
+		node.setAttribute(ModbusConnection.ATTR_ADAPTIVE_MAX_INTERVAL, new Value(adaptiveMax));
+		node.setAttribute(ModbusConnection.ATTR_OVERRUN_POLICY, new Value(OverrunPolicy.parse(
+				event.getParameter(ModbusConnection.ATTR_OVERRUN_POLICY, new Value("SKIP")).getString()).toString()));
+		node.setAttribute(ModbusConnection.ATTR_ILLEGAL_ADDRESSES,
+				event.getParameter(ModbusConnection.ATTR_ILLEGAL_ADDRESSES, new Value("")));
+		node.setAttribute(ModbusConnection.ATTR_PROBE_AFTER_SILENCE,
+				new Value((long) (event.getParameter(ModbusConnection.ATTR_PROBE_AFTER_SILENCE,
+						new Value(DeviceHealth.DEFAULT_PROBE_AFTER_SILENCE)).getNumber().doubleValue() * 1000)));
+		node.setAttribute(ModbusConnection.ATTR_PROBE_REGISTER, event.getParameter(
+				ModbusConnection.ATTR_PROBE_REGISTER, new Value(DeviceHealth.DEFAULT_PROBE_REGISTER)));
+		node.setAttribute(ModbusConnection.ATTR_BREAKER_THRESHOLD, event.getParameter(
+				ModbusConnection.ATTR_BREAKER_THRESHOLD, new Value(CircuitBreaker.DEFAULT_THRESHOLD)));
+		writeTimeoutAttributes(node, event);
+		node.setAttribute(ModbusConnection.ATTR_SLAVE_ID, new Value(slaveid));
+		node.setAttribute(ModbusConnection.ATTR_POLLING_INTERVAL, new Value(intervalInMs));
+		node.setAttribute(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL, new Value(zerofail));
+		node.setAttribute(ModbusConnection.ATTR_USE_BATCH_POLLING, new Value(batchpoll));
+		node.setAttribute(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY, new Value(contig));
+	}
+
+	void makeResetLimitsAction() {
+		Action act = new Action(Permission.READ, new Handler<ActionResult>() {
+			@Override
+			public void handle(ActionResult event) {
+				limits.reset();
+				invalidateReadPlan();
+			}
+		});
+		Node anode = node.getChild(ACTION_RESET_LIMITS, true);
 		if (anode == null)
-			node.createChild(ACTION_EDIT, true).setAction(act).build().setSerializable(false);
+			node.createChild(ACTION_RESET_LIMITS, true).setAction(act).build().setSerializable(false);
 		else
 			anode.setAction(act);
 	}
 
 	@Override
 	protected void remove() {
+		stopPolling(conn.getLink().pollScheduler);
 		super.remove();
 
 		conn.slaves.remove(this);
@@ -128,20 +407,9 @@ public class SlaveNode extends SlaveFolder {
 	private class EditHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
 			String name = event.getParameter(ATTR_NAME, ValueType.STRING).getString();
-			int slaveid = event.getParameter(ModbusConnection.ATTR_SLAVE_ID, ValueType.NUMBER).getNumber().intValue();
-			intervalInMs = (long) (event.getParameter(ModbusConnection.ATTR_POLLING_INTERVAL, ValueType.NUMBER)
-					.getNumber().doubleValue() * 1000);
-			boolean zerofail = event.getParameter(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL, ValueType.BOOL).getBool();
-			boolean batchpoll = event.getParameter(ModbusConnection.ATTR_USE_BATCH_POLLING, ValueType.BOOL).getBool();
-			boolean contig = event.getParameter(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY, ValueType.BOOL)
-					.getBool();
-
-			node.setAttribute(ModbusConnection.ATTR_SLAVE_ID, new Value(slaveid));
-			node.setAttribute(ModbusConnection.ATTR_POLLING_INTERVAL, new Value(intervalInMs));
-			node.setAttribute(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL, new Value(zerofail));
-			node.setAttribute(ModbusConnection.ATTR_USE_BATCH_POLLING, new Value(batchpoll));
-			node.setAttribute(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY, new Value(contig));
+			readDeviceParameters(event);
 
+			reloadSettings();
 			conn.getLink().handleEdit(root);
 
 			if (!name.equals(node.getName())) {
@@ -153,123 +421,482 @@ public class SlaveNode extends SlaveFolder {
 		}
 	}
 
-	public void readPoints() {
+	/*
+	 * Polls the points of the group without waiting for the device: each
+	 * step runs when the request before it completed, and done runs once the
+	 * poll is over.
+	 */
+	public void readPoints(PollGroup group, Runnable done) {
 		if (getMaster() == null) {
+			done.run();
 			return;
 		}
 
-		if (!NODE_STATUS_READY.equals(statnode.getValue().getString())) {
-			checkDeviceConnected();
-			if (!NODE_STATUS_READY.equals(statnode.getValue().getString())) {
-				return;
-			}
+		ReadPlan plan = getReadPlan(group);
+		if (plan.isEmpty() && quarantine.isEmpty()) {
+			done.run();
+			return;
 		}
 
-		int id = Util.getIntValue(node.getAttribute(ModbusConnection.ATTR_SLAVE_ID));
-		if (node.getAttribute(ModbusConnection.ATTR_USE_BATCH_POLLING).getBool()) {
-			BatchRead<Node> batch = new BatchRead<Node>();
-			batch.setContiguousRequests(
-					node.getAttribute(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY).getBool());
-			batch.setErrorsInResults(true);
-			Set<Node> polled = new HashSet<Node>();
-			for (Node pnode : subscribed.keySet()) {
-				BaseLocator<?> locator = getLocator(id, pnode);
-				if (locator == null) {
-					continue;
-				}
-				batch.addLocator(pnode, locator);
-				polled.add(pnode);
-			}
+		// while the breaker is open the device is skipped, and once it half opens this poll is the trial
+		boolean trial = !breaker.isClosed();
+		if (trial && !breaker.tryHalfOpen(System.nanoTime())) {
+			done.run();
+			return;
+		}
+		new Poll(group, plan, trial, done).start();
+	}
 
-			try {
-				BatchResults<Node> response = null;
-				synchronized (conn.masterLock) {
-					if (getMaster() == null) {
-						return;
+	/*
+	 * Gets the outcome of reading a block, once its request completed.
+	 */
+	private interface ReadCallback {
+		void read(int result);
+	}
+
+	/*
+	 * One poll of a group. The blocks are queued at once and handled in order
+	 * as they complete, except that a trial of the breaker sends the first
+	 * block alone. The steps of the poll run one at a time: a step that
+	 * completes right away, like every request of a connection that is down,
+	 * is run by the loop of the step before it instead of nesting a call.
+	 */
+	private class Poll {
+		final PollGroup group;
+		final ReadPlan plan;
+		final boolean trial;
+		final Runnable done;
+		final RequestQueue.Priority priority;
+		final boolean adaptive;
+		final int maxPeriod;
+
+		private final List<ReadPlan.Block> due = new ArrayList<ReadPlan.Block>();
+		private final List<ModbusRequest> batch = new ArrayList<ModbusRequest>();
+		private final List<RequestQueue.Transaction> transactions = new ArrayList<RequestQueue.Transaction>();
+		private boolean finished;
+
+		// the next step, and whether a thread runs the steps
+		private Runnable next;
+		private boolean looping;
+
+		Poll(PollGroup group, ReadPlan plan, boolean trial, Runnable done) {
+			this.group = group;
+			this.plan = plan;
+			this.trial = trial;
+			this.done = done;
+			this.priority = RequestQueue.Priority.forPoll(group);
+			this.adaptive = adaptivePolling;
+			this.maxPeriod = (int) Math.min(Integer.MAX_VALUE, adaptiveMaxIntervalMs / Math.max(1, group.intervalMs));
+		}
+
+		void start() {
+			resume(new Runnable() {
+				@Override
+				public void run() {
+					if (quarantine.isEmpty()) {
+						readBlocks();
+					} else {
+						probeQuarantined(quarantine.getDue(System.nanoTime()).iterator());
 					}
-					response = getMaster().send(batch);
 				}
+			});
+		}
 
-				if (response == null) {
+		/*
+		 * Runs the step on this thread, unless a thread already runs the
+		 * steps, which then runs it next.
+		 */
+		private void resume(Runnable step) {
+			synchronized (this) {
+				next = step;
+				if (looping) {
 					return;
 				}
-				for (Node pnode : polled) {
-					Object obj = response.getValue(pnode);
-					updateValue(pnode, obj);
+				looping = true;
+			}
+			while (true) {
+				Runnable r;
+				synchronized (this) {
+					r = next;
+					next = null;
+					if (r == null) {
+						looping = false;
+						return;
+					}
 				}
+				try {
+					r.run();
+				} catch (RuntimeException e) {
+					LOGGER.warn("error during poll of " + node.getName() + ": " + e.getMessage());
+					LOGGER.debug("error: ", e);
+					finish();
+				}
+			}
+		}
 
-			} catch (ModbusTransportException | ErrorResponseException e) {
-				LOGGER.warn("error during batch poll: " + e.getMessage());
-				LOGGER.debug("error during batch poll: ", e);
-				checkDeviceConnected();
-				if (node.getAttribute(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL).getBool()) {
-					for (Node pnode : polled) {
-						if (pnode.getValueType().compare(ValueType.NUMBER)) {
-							pnode.setValue(new Value(0));
-						} else if (pnode.getValueType().compare(ValueType.BOOL)) {
-							pnode.setValue(new Value(false));
-						}
-					}
+		/*
+		 * @return a callback that resumes the poll with the step
+		 */
+		private Runnable later(final Runnable step) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					resume(step);
+				}
+			};
+		}
+
+		private void finish() {
+			synchronized (this) {
+				if (finished) {
+					return;
 				}
+				finished = true;
 			}
-		} else {
-			for (Node pnode : subscribed.keySet()) {
-				BaseLocator<?> locator = getLocator(id, pnode);
-				if (locator == null) {
+			// drops the requests that were not sent yet
+			for (RequestQueue.Transaction transaction : transactions) {
+				transaction.cancel();
+			}
+			if (trial) {
+				breaker.abandonTrial(System.nanoTime());
+			}
+			done.run();
+		}
+
+		/*
+		 * Reads each quarantined point of the group whose backoff has passed
+		 * on its own, and releases it into the plan if the read succeeds.
+		 * Stops the poll if the connection failed.
+		 */
+		private void probeQuarantined(final Iterator<Node> points) {
+			final long now = System.nanoTime();
+			while (points.hasNext()) {
+				final Node pnode = points.next();
+				PointDescriptor descriptor = descriptors.get(pnode);
+				if (descriptor == null || !subscribed.containsKey(pnode)) {
+					quarantine.release(pnode);
+					continue;
+				}
+				if (!inPollGroup(descriptor, group)) {
 					continue;
 				}
 
+				ReadPlan.Block block;
 				try {
-					Object obj = null;
-					synchronized (conn.masterLock) {
-						if (getMaster() == null) {
+					block = ReadPlan.Block.of(new Node[] { pnode }, new PointDescriptor[] { descriptor });
+				} catch (ModbusTransportException e) {
+					LOGGER.debug("error creating probe: ", e);
+					continue;
+				}
+				readBlock(block, false, new ReadCallback() {
+					@Override
+					public void read(int result) {
+						if (result == READ_OK) {
+							LOGGER.info(node.getName() + ": releasing " + pnode.getName() + " from quarantine");
+							quarantine.release(pnode);
+							invalidateReadPlan();
+						} else if (result == READ_PARTIAL) {
+							quarantine.add(pnode, now);
+						} else {
+							finish();
 							return;
 						}
-						obj = getMaster().getValue(locator);
+						probeQuarantined(points);
 					}
+				});
+				return;
+			}
+			getStatistics().set(STAT_QUARANTINED_POINTS, quarantine.size());
+			readBlocks();
+		}
+
+		private void readBlocks() {
+			for (ReadPlan.Block block : plan.blocks) {
+				if (!adaptive || block.rate.isDue()) {
+					due.add(block);
+					batch.add(block.request);
+				}
+			}
+
+			if (due.isEmpty()) {
+				if (breaker.getState() == CircuitBreaker.State.HALF_OPEN) {
+					probe(later(new Runnable() {
+						@Override
+						public void run() {
+							finish();
+						}
+					}));
+				} else {
+					finish();
+				}
+				return;
+			}
 
-					if (obj == null) {
+			int queued = breaker.isClosed() ? batch.size() : 1;
+			transactions.addAll(conn.submitAll(batch.subList(0, queued), priority,
+					timeout.getTimeout(conn.getTimeout()), timeout.getRetries()));
+			readBlock(0);
+		}
+
+		private void readBlock(final int i) {
+			if (i == due.size()) {
+				finish();
+				return;
+			}
+			if (i == transactions.size()) {
+				transactions.addAll(conn.submitAll(batch.subList(i, batch.size()), priority,
+						timeout.getTimeout(conn.getTimeout()), timeout.getRetries()));
+			}
+			final ReadPlan.Block block = due.get(i);
+			readBlock(block, transactions.get(i), adaptive, new ReadCallback() {
+				@Override
+				public void read(int result) {
+					if (result == READ_ABORTED) {
+						finish();
 						return;
-					}
-					updateValue(pnode, obj);
-
-				} catch (ModbusTransportException | ErrorResponseException e) {
-					LOGGER.warn("error during poll: " + e.getMessage());
-					LOGGER.debug("error during poll: ", e);
-					checkDeviceConnected();
-					if (node.getAttribute(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL).getBool()) {
-						if (pnode.getValueType().compare(ValueType.NUMBER)) {
-							pnode.setValue(new Value(0));
-						} else if (pnode.getValueType().compare(ValueType.BOOL)) {
-							pnode.setValue(new Value(false));
+					} else if (result == READ_FAILED && !useBatchPolling && breaker.isClosed()) {
+						// without batching every block is one point, and one bad point leaves the others alone
+						if (zeroOnFailedPoll) {
+							zeroPoints(block.points);
 						}
+					} else if (result == READ_FAILED) {
+						if (zeroOnFailedPoll) {
+							// blocks that were not due this cycle keep their values
+							for (int b = i; b < due.size(); b++) {
+								zeroPoints(due.get(b).points);
+							}
+						}
+						finish();
+						return;
+					}
+					readBlock(i + 1);
+				}
+			});
+		}
+
+		/*
+		 * Sends the request of one block on its own.
+		 */
+		private void readBlock(ReadPlan.Block block, boolean adaptive, ReadCallback callback) {
+			if (getMaster() == null) {
+				callback.read(READ_ABORTED);
+				return;
+			}
+			readBlock(block, submit(block.request, priority), adaptive, callback);
+		}
+
+		private void readBlock(final ReadPlan.Block block, final RequestQueue.Transaction transaction,
+				final boolean adaptive, final ReadCallback callback) {
+			transaction.whenDone(later(new Runnable() {
+				@Override
+				public void run() {
+					blockRead(block, transaction, adaptive, callback);
+				}
+			}));
+		}
+
+		/*
+		 * Publishes the values of a block's points once its request
+		 * completed. A block the device rejects with an illegal data address
+		 * or an illegal data value is bisected, and the device's limits are
+		 * learned from the rejection.
+		 */
+		private void blockRead(ReadPlan.Block block, RequestQueue.Transaction transaction, boolean adaptive,
+				ReadCallback callback) {
+			ModbusResponse response = null;
+			long elapsed;
+			long requestTime;
+			try {
+				// the transaction is complete, this does not wait
+				response = transaction.await();
+				requestTime = transaction.getRequestTime();
+				elapsed = transaction.getElapsedNanos();
+			} catch (ModbusTransportException e) {
+				LOGGER.warn("error during poll: " + e.getMessage());
+				LOGGER.debug("error during poll: ", e);
+				block.rate.reset();
+				recordOutcome(false);
+				callback.read(READ_FAILED);
+				return;
+			}
+
+			if (response == null) {
+				callback.read(READ_ABORTED);
+				return;
+			}
+			recordOutcome(true);
+			recordResponseTime(transaction);
+			if (response.isException()) {
+				block.rate.reset();
+				byte code = response.getExceptionCode();
+				if (code == ExceptionCode.ILLEGAL_DATA_ADDRESS) {
+					bisect(block, true, callback);
+					return;
+				} else if (code == ExceptionCode.ILLEGAL_DATA_VALUE && block.points.length > 1) {
+					if (limits.readRefused(BinaryLocator.isBinaryRange(block.range), block.length,
+							System.nanoTime())) {
+						invalidateReadPlan();
+					}
+					bisect(block, false, callback);
+					return;
+				} else if (code == ExceptionCode.ILLEGAL_FUNCTION) {
+					if (limits.functionRefused(block.request.getFunctionCode())) {
+						invalidateReadPlan();
 					}
 				}
+				ExceptionResult result = new ExceptionResult(response.getExceptionCode());
+				for (int i = 0; i < block.points.length; i++) {
+					updateValue(block.points[i], block.descriptors[i], result, requestTime);
+				}
+				callback.read(READ_PARTIAL);
+				return;
+			}
 
+			byte[] data = ((ReadResponse) response).getData();
+			boolean binary = BinaryLocator.isBinaryRange(block.range);
+			conn.costModel.record(binary ? (block.length + 15) / 16 : block.length, elapsed);
+			if (limits.readSucceeded(binary, block.length, System.nanoTime())) {
+				invalidateReadPlan();
 			}
+			if (adaptive) {
+				block.rate.update(data, maxPeriod);
+			}
+			for (int i = 0; i < block.points.length; i++) {
+				Object obj;
+				try {
+					obj = block.decode(i, data);
+				} catch (RuntimeException e) {
+					LOGGER.debug("error decoding " + block.points[i].getName() + ": ", e);
+					obj = null;
+				}
+				updateValue(block.points[i], block.descriptors[i], obj, requestTime);
+			}
+			callback.read(READ_OK);
+		}
+
+		/*
+		 * Splits a rejected block in two halves and reads both, down to
+		 * single points. Single points with an illegal address are
+		 * quarantined. If both halves read fine, the illegal address is in the
+		 * gap between them, and the planner learns not to bridge it again.
+		 */
+		private void bisect(final ReadPlan.Block block, final boolean illegalAddress, final ReadCallback callback) {
+			if (block.points.length == 1) {
+				if (illegalAddress) {
+					quarantinePoint(block.points[0], block.descriptors[0]);
+				} else {
+					updateValue(block.points[0], block.descriptors[0],
+							new ExceptionResult(ExceptionCode.ILLEGAL_DATA_VALUE), System.currentTimeMillis());
+				}
+				callback.read(READ_PARTIAL);
+				return;
+			}
+
+			int mid = block.points.length / 2;
+			final ReadPlan.Block left;
+			final ReadPlan.Block right;
+			try {
+				left = block.slice(0, mid);
+				right = block.slice(mid, block.points.length);
+			} catch (ModbusTransportException e) {
+				LOGGER.debug("error splitting block: ", e);
+				callback.read(READ_PARTIAL);
+				return;
+			}
+
+			readBlock(left, false, new ReadCallback() {
+				@Override
+				public void read(final int leftResult) {
+					if (leftResult == READ_FAILED || leftResult == READ_ABORTED) {
+						callback.read(leftResult);
+						return;
+					}
+					readBlock(right, false, new ReadCallback() {
+						@Override
+						public void read(int rightResult) {
+							if (rightResult == READ_FAILED || rightResult == READ_ABORTED) {
+								callback.read(rightResult);
+								return;
+							}
+							if (illegalAddress && leftResult == READ_OK && rightResult == READ_OK) {
+								int first = left.start + left.length;
+								int last = right.start - 1;
+								if (first <= last) {
+									LOGGER.info(node.getName() + ": not reading illegal addresses " + first + "-"
+											+ last);
+									illegalAddresses.add(block.range, first, last);
+									invalidateReadPlan();
+								}
+							}
+							callback.read(READ_PARTIAL);
+						}
+					});
+				}
+			});
 		}
 	}
 
-	private static BaseLocator<?> getLocator(int slaveId, Node pnode) {
-		if (pnode.getAttribute(ATTR_OFFSET) == null)
-			return null;
-		PointType type = PointType.valueOf(pnode.getAttribute(ATTR_POINT_TYPE).getString());
-		int offset = Util.getIntValue(pnode.getAttribute(ATTR_OFFSET));
-		int numRegs = Util.getIntValue(pnode.getAttribute(ATTR_NUMBER_OF_REGISTERS));
-		int bit = Util.getIntValue(pnode.getAttribute(ATTR_BIT));
-		DataType dataType = DataType.valueOf(pnode.getAttribute(ATTR_DATA_TYPE).getString());
+	private void quarantinePoint(Node pnode, PointDescriptor descriptor) {
+		LOGGER.warn(node.getName() + ": quarantining " + pnode.getName() + ", illegal data address");
+		quarantine.add(pnode, System.nanoTime());
+		invalidateReadPlan();
+		getStatistics().set(STAT_QUARANTINED_POINTS, quarantine.size());
+		updateValue(pnode, descriptor, new ExceptionResult(ExceptionCode.ILLEGAL_DATA_ADDRESS),
+				System.currentTimeMillis());
+	}
 
-		Integer dt = DataType.getDataTypeInt(dataType);
-		if (dt == null)
-			dt = com.serotonin.modbus4j.code.DataType.FOUR_BYTE_INT_SIGNED;
-		int range = PointType.getPointTypeInt(type);
+	/*
+	 * Returns the compiled read plan of a poll group, building it if the
+	 * subscriptions or the point configuration changed since it was last
+	 * used.
+	 */
+	ReadPlan getReadPlan(PollGroup group) {
+		int gapRegisters = contiguousBatchRequestsOnly ? 0 : conn.costModel.getMaxGapRegisters();
+		int gapBits = contiguousBatchRequestsOnly ? 0 : conn.costModel.getMaxGapBits();
 
-		if (dataType == DataType.BOOLEAN && !BinaryLocator.isBinaryRange(range) && bit < 0) {
-			dt = com.serotonin.modbus4j.code.DataType.TWO_BYTE_INT_SIGNED;
+		Map<String, ReadPlan> plans = readPlans;
+		ReadPlan plan = plans.get(group.name);
+		if (plan != null && (plan.isEmpty() || !plan.isOutdated(gapRegisters, gapBits))) {
+			return plan;
+		}
+
+		Map<Node, PointDescriptor> points = new HashMap<Node, PointDescriptor>();
+		for (Node pnode : subscribed.keySet()) {
+			PointDescriptor descriptor = descriptors.get(pnode);
+			if (descriptor != null && inPollGroup(descriptor, group) && !quarantine.contains(pnode)
+					&& limits.isSupported(ReadPlan.getReadFunctionCode(descriptor.range))) {
+				points.put(pnode, descriptor);
+			}
 		}
+		plan = ReadPlan.build(slaveId, points, useBatchPolling, gapRegisters, gapBits,
+				limits.getMaxRegisters(conn.getMaxrrc()), limits.getMaxBits(conn.getMaxrbc()), illegalAddresses);
 
-		BaseLocator<?> locator = BaseLocator.createLocator(slaveId, range, offset, dt, bit, numRegs);
-		return locator;
+		synchronized (planLock) {
+			if (plans == readPlans) {
+				plans.put(group.name, plan);
+			}
+		}
+		return plan;
+	}
+
+	void invalidateReadPlan() {
+		synchronized (planLock) {
+			readPlans = new ConcurrentHashMap<String, ReadPlan>();
+		}
+	}
+
+	private void zeroPoints(Node[] points) {
+		for (Node pnode : points) {
+			PointState state = pointStates.get(pnode);
+			if (state != null) {
+				state.invalidate();
+			}
+			if (pnode.getValueType().compare(ValueType.NUMBER)) {
+				pnode.setValue(new Value(0));
+			} else if (pnode.getValueType().compare(ValueType.BOOL)) {
+				pnode.setValue(new Value(false));
+			}
+		}
 	}
 
 	private static boolean isBitSet(int num, int bit) {
@@ -296,66 +923,72 @@ public class SlaveNode extends SlaveFolder {
 		return num;
 	}
 
-	private void updateValue(Node pnode, Object obj) {
-		DataType dataType = DataType.valueOf(pnode.getAttribute(ATTR_DATA_TYPE).getString());
-		double scaling = Util.getDoubleValue(pnode.getAttribute(ATTR_SCALING));
-		double addscale = Util.getDoubleValue(pnode.getAttribute(ATTR_SCALING_OFFSET));
+	/*
+	 * Published values carry the time their request was sent, so sampling
+	 * time and publish time can be told apart.
+	 */
+	private void updateValue(Node pnode, PointDescriptor descriptor, Object obj, long time) {
+		DataType dataType = descriptor.dataType;
+		double scaling = descriptor.scaling;
+		double addscale = descriptor.addScale;
+		PointState state = pointStates.get(pnode);
 
-		ValueType vt = null;
-		Value v = null;
-		if (DataType.getDataTypeInt(dataType) != null) {
+		if (descriptor.nativeDataType) {
 			if (dataType == DataType.BOOLEAN && obj instanceof Boolean) {
-				vt = ValueType.BOOL;
-				v = new Value((Boolean) obj);
+				publishObject(pnode, descriptor, state, ValueType.BOOL, obj, time);
+				return;
 			} else if (dataType == DataType.BOOLEAN && obj instanceof Number) {
-				vt = ValueType.ARRAY;
-				JsonArray jarr = new JsonArray();
-				for (int i = 0; i < BITS_IN_REGISTER; i++) {
-					jarr.add(isBitSet(((Number) obj).intValue(), i));
+				int bits = ((Number) obj).intValue();
+				if (state == null || state.checkObject(descriptor, bits, System.nanoTime())) {
+					JsonArray jarr = new JsonArray();
+					for (int i = 0; i < BITS_IN_REGISTER; i++) {
+						jarr.add(isBitSet(bits, i));
+					}
+					Value v = new Value(jarr);
+					v.setTime(time);
+					pnode.setValueType(ValueType.ARRAY);
+					pnode.setValue(v);
 				}
-				v = new Value(jarr);
+				return;
 			} else if (dataType.isString() && obj instanceof String) {
-				vt = ValueType.STRING;
-				v = new Value((String) obj);
+				publishObject(pnode, descriptor, state, ValueType.STRING, obj, time);
+				return;
 			} else if (obj instanceof Number) {
-				vt = ValueType.NUMBER;
-				Number num = (Number) obj;
-				v = new Value(num.doubleValue() / scaling + addscale);
+				publishNumber(pnode, descriptor, state, ((Number) obj).doubleValue() / scaling + addscale, time);
+				return;
 			} else if (obj instanceof ExceptionResult) {
 				ExceptionResult result = (ExceptionResult) obj;
 				LOGGER.error(pnode.getName() + " : " + result.getExceptionMessage());
 			}
-		} else {
+		} else if (obj instanceof ExceptionResult) {
+			LOGGER.error(pnode.getName() + " : " + ((ExceptionResult) obj).getExceptionMessage());
+		} else if (obj instanceof Number) {
 			switch (dataType) {
 			case INT32M10KSWAP:
 			case INT32M10K: {
 				int registerContents = ((Number) obj).intValue();
 				boolean swap = (dataType == DataType.INT32M10KSWAP);
 				int num = parseIntModulo10K(registerContents, swap);
-				vt = ValueType.NUMBER;
-				v = new Value(num / scaling + addscale);
-				break;
+				publishNumber(pnode, descriptor, state, num / scaling + addscale, time);
+				return;
 			}
 			case UINT32M10KSWAP:
 			case UINT32M10K: {
 				int registerContents = ((Number) obj).intValue();
 				boolean swap = (dataType == DataType.UINT32M10KSWAP);
 				long num = parseUnsignedIntModulo10K(registerContents, swap);
-				vt = ValueType.NUMBER;
-				v = new Value(num / scaling + addscale);
-				break;
+				publishNumber(pnode, descriptor, state, num / scaling + addscale, time);
+				return;
 			}
 			default:
-				vt = null;
-				v = null;
 				break;
 			}
 		}
 
-		if (v != null) {
-			pnode.setValueType(vt);
-			pnode.setValue(v);
-		} else if (node.getAttribute(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL).getBool()) {
+		if (zeroOnFailedPoll) {
+			if (state != null) {
+				state.invalidate();
+			}
 			if (pnode.getValueType().compare(ValueType.NUMBER)) {
 				pnode.setValue(new Value(0));
 			} else if (pnode.getValueType().compare(ValueType.BOOL)) {
@@ -364,8 +997,113 @@ public class SlaveNode extends SlaveFolder {
 		}
 	}
 
-	public ScheduledThreadPoolExecutor getDaemonThreadPool() {
-		return conn.getDaemonThreadPool();
+	/*
+	 * The deadband is checked on the primitive value, so that a filtered
+	 * value never allocates a Value.
+	 */
+	private static void publishNumber(Node pnode, PointDescriptor descriptor, PointState state, double num,
+			long time) {
+		if (state == null || state.checkNumber(descriptor, num, System.nanoTime())) {
+			Value v = new Value(num);
+			v.setTime(time);
+			pnode.setValueType(ValueType.NUMBER);
+			pnode.setValue(v);
+		}
+	}
+
+	private static void publishObject(Node pnode, PointDescriptor descriptor, PointState state, ValueType vt,
+			Object obj, long time) {
+		if (state == null || state.checkObject(descriptor, obj, System.nanoTime())) {
+			Value v = obj instanceof Boolean ? new Value((Boolean) obj) : new Value((String) obj);
+			v.setTime(time);
+			pnode.setValueType(vt);
+			pnode.setValue(v);
+		}
+	}
+
+	synchronized Statistics getStatistics() {
+		if (statistics == null) {
+			statistics = new Statistics(node);
+		}
+		return statistics;
+	}
+
+	Executor getPollExecutor() {
+		return conn.getPollExecutor();
+	}
+
+	/*
+	 * Sends the sets of writes one request at a time, in the order they were
+	 * made. Each request is submitted once the one before it completed, so no
+	 * thread waits for the device. The rest of a set is dropped when one of
+	 * its requests fails.
+	 */
+	@Override
+	void sendWrites(Queue<ModbusRequest> requests) {
+		synchronized (writes) {
+			writes.add(requests);
+			if (writing) {
+				return;
+			}
+			writing = true;
+		}
+		sendNextWrite();
+	}
+
+	private void sendNextWrite() {
+		ModbusRequest request;
+		synchronized (writes) {
+			while (true) {
+				Queue<ModbusRequest> set = writes.peek();
+				if (set == null) {
+					writing = false;
+					return;
+				}
+				request = set.poll();
+				if (request != null) {
+					break;
+				}
+				writes.remove();
+			}
+		}
+
+		final RequestQueue.Transaction transaction = submit(request, RequestQueue.Priority.WRITE);
+		transaction.whenDone(new Runnable() {
+			@Override
+			public void run() {
+				if (!writeCompleted(transaction)) {
+					synchronized (writes) {
+						writes.remove();
+					}
+				}
+				sendNextWrite();
+			}
+		});
+	}
+
+	/**
+	 * @return false if the write failed
+	 */
+	private boolean writeCompleted(RequestQueue.Transaction transaction) {
+		ModbusResponse response;
+		try {
+			response = transaction.await();
+		} catch (ModbusTransportException e) {
+			recordOutcome(false);
+			LOGGER.error("Error during set: " + e.getMessage());
+			LOGGER.debug("error: ", e);
+			return false;
+		}
+		recordOutcome(true);
+		recordResponseTime(transaction);
+		if (response != null && response.isException()) {
+			if (response.getExceptionCode() == ExceptionCode.ILLEGAL_FUNCTION) {
+				limits.functionRefused(transaction.request.getFunctionCode());
+			}
+			LOGGER.error("Error during set: " + response.getExceptionMessage());
+			return false;
+		}
+		return true;
 	}
 
 	@Override
@@ -373,34 +1111,147 @@ public class SlaveNode extends SlaveFolder {
 		return conn.master;
 	}
 
+	@Override
+	DeviceLimits getLimits() {
+		return limits;
+	}
+
 	@Override
 	public Node getStatusNode() {
 		return this.statnode;
 	}
 
+	/*
+	 * Probes the device if nothing was heard from it for the configured
+	 * silence.
+	 */
 	@Override
 	void checkDeviceConnected() {
-		int slaveId = node.getAttribute(ATTR_SLAVE_ID).getNumber().intValue();
+		if (conn.master == null) {
+			statnode.setValue(new Value(NODE_STATUS_CONN_DOWN));
+			return;
+		}
+		if (health.isProbeDue(System.nanoTime(), probeAfterSilenceMs * 1000000)) {
+			probe(null);
+		}
+	}
 
-		synchronized (conn.masterLock) {
-			boolean connected = false;
-			if (conn.master != null) {
+	/*
+	 * Reads the probe register of the device without waiting for it, and
+	 * records the outcome once it completed.
+	 *
+	 * @param done
+	 *            runs after the outcome was recorded, or null
+	 */
+	private void probe(final Runnable done) {
+		final RequestQueue.Transaction transaction;
+		try {
+			transaction = submit(DeviceHealth.createProbe(slaveId, probeRegister), RequestQueue.Priority.READ);
+		} catch (ModbusTransportException e) {
+			LOGGER.debug("error creating device probe: ", e);
+			recordOutcome(false);
+			if (done != null) {
+				done.run();
+			}
+			return;
+		}
+		transaction.whenDone(new Runnable() {
+			@Override
+			public void run() {
 				try {
-					connected = Util.pingModbusSlave(conn.master, slaveId);
-				} catch (Exception e) {
-					LOGGER.debug("error during device ping: ", e);
+					transaction.await();
+					recordOutcome(true);
+					recordResponseTime(transaction);
+				} catch (ModbusTransportException e) {
+					LOGGER.debug("device probe failed: ", e);
+					recordOutcome(false);
 				}
-				if (connected) {
-					statnode.setValue(new Value(NODE_STATUS_READY));
-				} else {
-					statnode.setValue(new Value(NODE_STATUS_PING_FAILED));
-					conn.checkConnection();
+				if (done != null) {
+					done.run();
 				}
-			} else {
-				statnode.setValue(new Value(NODE_STATUS_CONN_DOWN));
+			}
+		});
+	}
+
+	/*
+	 * Queues a request with the device's timeout and retries.
+	 */
+	private RequestQueue.Transaction submit(ModbusRequest request, RequestQueue.Priority priority) {
+		return conn.submit(request, priority, timeout.getTimeout(conn.getTimeout()), timeout.getRetries());
+	}
+
+	private void recordResponseTime(RequestQueue.Transaction transaction) {
+		// a stock master keeps the connection's timeout, so there is none to learn
+		if (!(conn.master instanceof TimedMaster)) {
+			return;
+		}
+		if (timeout.record(transaction.getElapsedNanos())) {
+			getStatistics().set(STAT_TIMEOUT, timeout.getTimeout(conn.getTimeout()));
+		}
+	}
+
+	/*
+	 * The device's timeout settings, also on the edit action of a legacy
+	 * device.
+	 */
+	static void addTimeoutParameters(Action act, Node node) {
+		Value deviceTimeout = node.getAttribute(ModbusConnection.ATTR_DEVICE_TIMEOUT);
+		act.addParameter(new Parameter(ModbusConnection.ATTR_DEVICE_TIMEOUT, ValueType.NUMBER,
+				deviceTimeout != null ? deviceTimeout : new Value(0)));
+		Value deviceRetries = node.getAttribute(ModbusConnection.ATTR_DEVICE_RETRIES);
+		act.addParameter(new Parameter(ModbusConnection.ATTR_DEVICE_RETRIES, ValueType.NUMBER,
+				deviceRetries != null ? deviceRetries : new Value(-1)));
+		act.addParameter(new Parameter(ModbusConnection.ATTR_AUTO_TIMEOUT, ValueType.BOOL,
+				node.getAttribute(ModbusConnection.ATTR_AUTO_TIMEOUT)));
+		Value factor = node.getAttribute(ModbusConnection.ATTR_AUTO_TIMEOUT_FACTOR);
+		act.addParameter(new Parameter(ModbusConnection.ATTR_AUTO_TIMEOUT_FACTOR, ValueType.NUMBER,
+				factor != null ? factor : new Value(DeviceTimeout.DEFAULT_FACTOR)));
+		Value min = node.getAttribute(ModbusConnection.ATTR_AUTO_TIMEOUT_MIN);
+		act.addParameter(new Parameter(ModbusConnection.ATTR_AUTO_TIMEOUT_MIN, ValueType.NUMBER,
+				min != null ? min : new Value(DeviceTimeout.DEFAULT_MIN_MS)));
+	}
+
+	static void writeTimeoutAttributes(Node node, ActionResult event) {
+		node.setAttribute(ModbusConnection.ATTR_DEVICE_TIMEOUT,
+				event.getParameter(ModbusConnection.ATTR_DEVICE_TIMEOUT, new Value(0)));
+		node.setAttribute(ModbusConnection.ATTR_DEVICE_RETRIES,
+				event.getParameter(ModbusConnection.ATTR_DEVICE_RETRIES, new Value(-1)));
+		node.setAttribute(ModbusConnection.ATTR_AUTO_TIMEOUT,
+				event.getParameter(ModbusConnection.ATTR_AUTO_TIMEOUT, new Value(false)));
+		node.setAttribute(ModbusConnection.ATTR_AUTO_TIMEOUT_FACTOR,
+				event.getParameter(ModbusConnection.ATTR_AUTO_TIMEOUT_FACTOR, new Value(DeviceTimeout.DEFAULT_FACTOR)));
+		node.setAttribute(ModbusConnection.ATTR_AUTO_TIMEOUT_MIN,
+				event.getParameter(ModbusConnection.ATTR_AUTO_TIMEOUT_MIN, new Value(DeviceTimeout.DEFAULT_MIN_MS)));
+	}
+
+	@Override
+	void recordOutcome(boolean answered) {
+		long now = System.nanoTime();
+		String status;
+		if (answered) {
+			health.succeeded(now);
+			if (breaker.succeeded()) {
+				LOGGER.info(node.getName() + ": circuit breaker closed");
+				getStatistics().set(STAT_CIRCUIT_BREAKER, breaker.getState().toString());
+			}
+			status = NODE_STATUS_READY;
+		} else {
+			health.failed(now);
+			if (breaker.failed(now, breakerThreshold, probeAfterSilenceMs * 1000000)) {
+				LOGGER.warn(node.getName() + ": circuit breaker opened, skipping polls");
+				getStatistics().set(STAT_CIRCUIT_BREAKER, breaker.getState().toString());
+			}
+			ModbusMaster master = conn.master;
+			status = master != null ? NODE_STATUS_NOT_RESPONDING : NODE_STATUS_CONN_DOWN;
+			// a device that does not answer says nothing about the connection
+			if (master == null || !master.isInitialized()) {
+				conn.checkConnectionLater();
 			}
 		}
-		return;
+		Value current = statnode.getValue();
+		if (current == null || !status.equals(current.getString())) {
+			statnode.setValue(new Value(status));
+		}
 	}
 
 	@Override
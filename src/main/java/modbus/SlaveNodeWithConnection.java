@@ -56,16 +56,7 @@ public class SlaveNodeWithConnection extends SlaveNode {
 		act.addParameter(new Parameter("port", ValueType.NUMBER, node.getAttribute("port")));
 
 		// The device specific parameters
-		act.addParameter(new Parameter(ModbusConnection.ATTR_SLAVE_ID, ValueType.NUMBER,
-				node.getAttribute(ModbusConnection.ATTR_SLAVE_ID)));
-		int interval = node.getAttribute(ModbusConnection.ATTR_POLLING_INTERVAL).getNumber().intValue() / 1000;
-		act.addParameter(new Parameter(ModbusConnection.ATTR_POLLING_INTERVAL, ValueType.NUMBER, new Value(interval)));
-		act.addParameter(new Parameter(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL, ValueType.BOOL,
-				node.getAttribute(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL)));
-		act.addParameter(new Parameter(ModbusConnection.ATTR_USE_BATCH_POLLING, ValueType.BOOL,
-				node.getAttribute(ModbusConnection.ATTR_USE_BATCH_POLLING)));
-		act.addParameter(new Parameter(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY, ValueType.BOOL,
-				node.getAttribute(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY)));
+		addDeviceParameters(act);
 
 		// the common parameters for connection
 		act.addParameter(new Parameter(ModbusConnection.ATTR_TIMEOUT, ValueType.NUMBER,
@@ -128,20 +119,9 @@ public class SlaveNodeWithConnection extends SlaveNode {
 
 			String name = event.getParameter(ATTR_NAME, ValueType.STRING).getString();
 
-			int slaveid = event.getParameter(ModbusConnection.ATTR_SLAVE_ID, ValueType.NUMBER).getNumber().intValue();
-			intervalInMs = (long) (event.getParameter(ModbusConnection.ATTR_POLLING_INTERVAL, ValueType.NUMBER)
-					.getNumber().doubleValue() * 1000);
-			boolean zerofail = event.getParameter(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL, ValueType.BOOL).getBool();
-			boolean batchpoll = event.getParameter(ModbusConnection.ATTR_USE_BATCH_POLLING, ValueType.BOOL).getBool();
-			boolean contig = event.getParameter(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY, ValueType.BOOL)
-					.getBool();
-
-			node.setAttribute(ModbusConnection.ATTR_SLAVE_ID, new Value(slaveid));
-			node.setAttribute(ModbusConnection.ATTR_POLLING_INTERVAL, new Value(intervalInMs));
-			node.setAttribute(ModbusConnection.ATTR_ZERO_ON_FAILED_POLL, new Value(zerofail));
-			node.setAttribute(ModbusConnection.ATTR_USE_BATCH_POLLING, new Value(batchpoll));
-			node.setAttribute(ModbusConnection.ATTR_CONTIGUOUS_BATCH_REQUEST_ONLY, new Value(contig));
+			readDeviceParameters(event);
 
+			reloadSettings();
 			conn.getLink().handleEdit(root);
 
 			if (!name.equals(node.getName())) {
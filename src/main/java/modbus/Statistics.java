@@ -0,0 +1,78 @@
+package modbus;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+
+/*
+ * A folder of read-only diagnostic values below a device or connection node.
+ *
+ * The folder and its values are created on first use and are never
+ * serialized. Setting a value to what it already is does not publish it
+ * again.
+ *
+ * */
+class Statistics {
+	static final String NODE_STATISTICS = "Statistics";
+
+	private final Node parent;
+	private final Map<String, Node> values = new ConcurrentHashMap<String, Node>();
+	private final Map<String, Object> last = new ConcurrentHashMap<String, Object>();
+	private Node folder;
+
+	Statistics(Node parent) {
+		this.parent = parent;
+	}
+
+	void set(String name, Number value) {
+		if (changed(name, value)) {
+			getValueNode(name, ValueType.NUMBER).setValue(new Value(value));
+		}
+	}
+
+	void set(String name, String value) {
+		if (changed(name, value)) {
+			getValueNode(name, ValueType.STRING).setValue(new Value(value));
+		}
+	}
+
+	void set(String name, boolean value) {
+		if (changed(name, value)) {
+			getValueNode(name, ValueType.BOOL).setValue(new Value(value));
+		}
+	}
+
+	private boolean changed(String name, Object value) {
+		return !value.equals(last.put(name, value));
+	}
+
+	private Node getValueNode(String name, ValueType type) {
+		Node vnode = values.get(name);
+		if (vnode != null) {
+			return vnode;
+		}
+
+		synchronized (this) {
+			if (folder == null) {
+				folder = parent.getChild(NODE_STATISTICS, true);
+				if (folder == null) {
+					folder = parent.createChild(NODE_STATISTICS, true).build();
+				}
+				folder.setSerializable(false);
+			}
+
+			vnode = folder.getChild(name, true);
+			if (vnode == null) {
+				vnode = folder.createChild(name, true).setValueType(type).build();
+			} else {
+				vnode.setValueType(type);
+			}
+			vnode.setSerializable(false);
+			values.put(name, vnode);
+			return vnode;
+		}
+	}
+}
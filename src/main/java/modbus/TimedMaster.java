@@ -0,0 +1,16 @@
+package modbus;
+
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+import com.serotonin.modbus4j.msg.ModbusRequest;
+import com.serotonin.modbus4j.msg.ModbusResponse;
+
+/*
+ * A master that takes the timeout and retries of each request, so the
+ * devices of one connection can have their own. The masters of this link,
+ * MbapMaster and the pool of its sockets, take them. The stock serial, TCP
+ * and UDP masters keep the connection's, set when they are created.
+ *
+ * */
+interface TimedMaster {
+	ModbusResponse send(ModbusRequest request, int timeout, int retries) throws ModbusTransportException;
+}
@@ -0,0 +1,329 @@
+package modbus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.Node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.modbus4j.ModbusMaster;
+
+/*
+ * The transports of the link, one per endpoint.
+ *
+ * Connection nodes that target the same transport type, host and port share
+ * one master, so a gateway sees one client however many connection nodes
+ * point at it. The master is created for the first connection, with that
+ * connection's settings, and destroyed when the last one releases it. It is
+ * created outside the registry's lock, so a slow connect only holds up the
+ * connections to the same endpoint. All
+ * connections of an endpoint queue their requests in its lanes, so a write
+ * of one goes ahead of the polls of all, and their polls are staggered
+ * together. The loss rate of every hedged UDP endpoint is
+ * published below the link's statistics.
+ *
+ * */
+class TransportRegistry {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(TransportRegistry.class);
+	}
+
+	/*
+	 * The endpoint of a transport.
+	 */
+	static class Key {
+		final IpTransportType type;
+		final String host;
+		final int port;
+
+		Key(IpTransportType type, String host, int port) {
+			this.type = type;
+			this.host = host.trim().toLowerCase();
+			this.port = port;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return type == k.type && port == k.port && host.equals(k.host);
+		}
+
+		@Override
+		public int hashCode() {
+			return (type.hashCode() * 31 + host.hashCode()) * 31 + port;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + host + ":" + port;
+		}
+	}
+
+	/*
+	 * The settings a master was created with. Connections that share it get
+	 * those of the first one.
+	 */
+	static class Settings {
+		final int timeout;
+		final int retries;
+		final int maxInFlight;
+		final int sockets;
+		final boolean eventLoop;
+		final double hedgePercentile;
+		final double maxRequestRate;
+		final int requestBurst;
+		final int minRequestGap;
+
+		Settings(int timeout, int retries, int maxInFlight, int sockets, boolean eventLoop, double hedgePercentile,
+				double maxRequestRate, int requestBurst, int minRequestGap) {
+			this.timeout = timeout;
+			this.retries = retries;
+			this.maxInFlight = maxInFlight;
+			this.sockets = sockets;
+			this.eventLoop = eventLoop;
+			this.hedgePercentile = hedgePercentile;
+			this.maxRequestRate = maxRequestRate;
+			this.requestBurst = requestBurst;
+			this.minRequestGap = minRequestGap;
+		}
+
+		/**
+		 * @return the number of requests the master can have in flight
+		 */
+		int getParallelism() {
+			return maxInFlight * sockets;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Settings)) {
+				return false;
+			}
+			Settings s = (Settings) o;
+			return timeout == s.timeout && retries == s.retries && maxInFlight == s.maxInFlight
+					&& sockets == s.sockets && eventLoop == s.eventLoop
+					&& Double.compare(hedgePercentile, s.hedgePercentile) == 0
+					&& Double.compare(maxRequestRate, s.maxRequestRate) == 0 && requestBurst == s.requestBurst
+					&& minRequestGap == s.minRequestGap;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = timeout;
+			h = h * 31 + retries;
+			h = h * 31 + maxInFlight;
+			h = h * 31 + sockets;
+			h = h * 31 + (eventLoop ? 1 : 0);
+			h = h * 31 + Double.valueOf(hedgePercentile).hashCode();
+			h = h * 31 + Double.valueOf(maxRequestRate).hashCode();
+			h = h * 31 + requestBurst;
+			return h * 31 + minRequestGap;
+		}
+
+		@Override
+		public String toString() {
+			return "timeout " + timeout + " ms, retries " + retries + ", max in flight " + maxInFlight + ", sockets "
+					+ sockets + ", event loop " + eventLoop + ", hedge percentile " + hedgePercentile
+					+ ", max requests per second " + maxRequestRate + ", request burst " + requestBurst
+					+ ", min request gap " + minRequestGap + " ms";
+		}
+	}
+
+	/*
+	 * A master, the lanes its requests wait in, and the number of connections
+	 * using it. The endpoint's rate limit holds for the requests of all of
+	 * them together.
+	 */
+	static class Transport {
+		final Key key;
+		// of the connection that created the master
+		final Settings settings;
+		// set once the master was created, null until then
+		volatile ModbusMaster master;
+		// serializes the requests of all connections on the master
+		final Object lock = new Object();
+		final RequestQueue.Endpoint endpoint;
+		private int refs;
+		private boolean created;
+		private boolean destroyed;
+
+		Transport(Key key, Settings settings, LinkExecutors executors) {
+			this.key = key;
+			this.settings = settings;
+			this.endpoint = new RequestQueue.Endpoint(executors) {
+				@Override
+				ModbusMaster getMaster() {
+					return master;
+				}
+
+				@Override
+				Object getSendLock() {
+					return lock;
+				}
+			};
+			endpoint.limiter.configure(settings.maxRequestRate, settings.requestBurst, settings.minRequestGap);
+		}
+
+		private synchronized void created(ModbusMaster master) {
+			this.master = master;
+			created = true;
+			notifyAll();
+		}
+
+		/**
+		 * @return the master, or null if it could not be created
+		 */
+		private synchronized ModbusMaster awaitCreated() {
+			boolean interrupted = false;
+			while (!created) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return master;
+		}
+	}
+
+	interface Factory {
+		/**
+		 * @return an initialized master, or null if it could not be created
+		 */
+		ModbusMaster create();
+	}
+
+	private static final long METRICS_PERIOD_SECONDS = 10;
+
+	private final ModbusLink link;
+	private final Map<Key, Transport> transports = new HashMap<Key, Transport>();
+	private Statistics statistics;
+
+	TransportRegistry(ModbusLink link) {
+		this.link = link;
+	}
+
+	/**
+	 * Takes a reference to the transport of the endpoint, creating it if
+	 * there is none or the one there has failed. A connection that asks for
+	 * a transport while it is being created waits for it. A connection whose
+	 * settings differ from those the master was created with gets a warning,
+	 * since the master keeps them, and shows them on its node.
+	 *
+	 * @return the transport, or null if no master could be created
+	 */
+	Transport acquire(Key key, Settings settings, Factory factory) {
+		Transport t;
+		boolean create = false;
+		synchronized (this) {
+			t = transports.get(key);
+			if (t != null && t.created && (t.master == null || !t.master.isInitialized())) {
+				// its users still hold references, and release them when they notice
+				transports.remove(key);
+				destroy(t);
+				t = null;
+			}
+			if (t == null) {
+				t = new Transport(key, settings, link.executors);
+				transports.put(key, t);
+				create = true;
+			} else {
+				LOGGER.debug("sharing transport " + key + " with " + t.refs + " other connections");
+				if (!t.settings.equals(settings)) {
+					LOGGER.warn("transport " + key + " is shared, using its settings (" + t.settings
+							+ ") instead of (" + settings + ")");
+				}
+			}
+			t.refs++;
+		}
+
+		ModbusMaster master;
+		if (create) {
+			master = null;
+			try {
+				master = factory.create();
+			} finally {
+				if (master != null) {
+					synchronized (this) {
+						link.masters.add(master);
+					}
+				}
+				t.created(master);
+			}
+		} else {
+			master = t.awaitCreated();
+		}
+		if (master == null) {
+			release(t);
+			return null;
+		}
+		return t;
+	}
+
+	/*
+	 * Drops a reference to the transport, and destroys its master once no
+	 * connection uses it.
+	 */
+	synchronized void release(Transport t) {
+		if (--t.refs > 0) {
+			return;
+		}
+		if (transports.get(t.key) == t) {
+			transports.remove(t.key);
+		}
+		destroy(t);
+	}
+
+	/*
+	 * Publishes the metrics of the endpoints below the node, periodically.
+	 */
+	void publishMetrics(Node node) {
+		statistics = new Statistics(node);
+		link.executors.timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				List<Transport> l;
+				synchronized (TransportRegistry.this) {
+					l = new ArrayList<Transport>(transports.values());
+				}
+				for (Transport t : l) {
+					if (t.master instanceof HedgedUdpMaster) {
+						HedgedUdpMaster udp = (HedgedUdpMaster) t.master;
+						statistics.set(t.key + " loss rate (%)", Math.round(udp.takeLossRate() * 1000) / 10.0);
+						statistics.set(t.key + " hedged datagrams", udp.takeHedged());
+					}
+				}
+			}
+		}, METRICS_PERIOD_SECONDS, METRICS_PERIOD_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private void destroy(Transport t) {
+		if (t.destroyed) {
+			return;
+		}
+		t.destroyed = true;
+		ModbusMaster master = t.master;
+		if (master == null) {
+			return;
+		}
+		link.masters.remove(master);
+		try {
+			master.destroy();
+		} catch (Exception e) {
+			LOGGER.debug("error destroying master of " + t.key + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveRateTest {
+	private static final byte[] A = { 1, 2 };
+	private static final byte[] B = { 1, 3 };
+
+	@Test
+	public void unchangedDataDoublesThePeriodUpToTheMaximum() {
+		AdaptiveRate rate = new AdaptiveRate();
+		rate.update(A, 8);
+		assertEquals(1, rate.getPeriod());
+		rate.update(A.clone(), 8);
+		assertEquals(2, rate.getPeriod());
+		rate.update(A, 8);
+		assertEquals(4, rate.getPeriod());
+		rate.update(A, 8);
+		assertEquals(8, rate.getPeriod());
+		rate.update(A, 8);
+		assertEquals(8, rate.getPeriod());
+	}
+
+	@Test
+	public void blockSitsOutTheCyclesOfItsPeriod() {
+		AdaptiveRate rate = new AdaptiveRate();
+		rate.update(A, 8);
+		rate.update(A, 8);
+		rate.update(A, 8);
+		assertFalse(rate.isDue());
+		assertFalse(rate.isDue());
+		assertFalse(rate.isDue());
+		assertTrue(rate.isDue());
+	}
+
+	@Test
+	public void changedDataRestoresTheFullRate() {
+		AdaptiveRate rate = new AdaptiveRate();
+		rate.update(A, 8);
+		rate.update(A, 8);
+		rate.update(B, 8);
+		assertEquals(1, rate.getPeriod());
+		assertTrue(rate.isDue());
+	}
+
+	@Test
+	public void resetRestoresTheFullRate() {
+		AdaptiveRate rate = new AdaptiveRate();
+		rate.update(A, 8);
+		rate.update(A, 8);
+		rate.reset();
+		assertEquals(1, rate.getPeriod());
+		assertTrue(rate.isDue());
+		rate.update(A, 8);
+		assertEquals(1, rate.getPeriod());
+	}
+
+	@Test
+	public void maximumOfOneKeepsTheFullRate() {
+		AdaptiveRate rate = new AdaptiveRate();
+		rate.update(A, 1);
+		rate.update(A, 1);
+		assertEquals(1, rate.getPeriod());
+		assertTrue(rate.isDue());
+	}
+}
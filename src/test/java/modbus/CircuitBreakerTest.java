@@ -0,0 +1,98 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+	private static final long MAX_OPEN = TimeUnit.MINUTES.toNanos(1);
+	private static final long OPEN = CircuitBreaker.MIN_OPEN_NANOS;
+
+	private static CircuitBreaker opened(long now) {
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.failed(now, 3, MAX_OPEN);
+		breaker.failed(now, 3, MAX_OPEN);
+		assertTrue(breaker.failed(now, 3, MAX_OPEN));
+		return breaker;
+	}
+
+	@Test
+	public void opensAfterTheThreshold() {
+		CircuitBreaker breaker = new CircuitBreaker();
+		assertFalse(breaker.failed(0, 3, MAX_OPEN));
+		assertFalse(breaker.failed(0, 3, MAX_OPEN));
+		assertTrue(breaker.isClosed());
+		assertTrue(breaker.failed(0, 3, MAX_OPEN));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void successResetsTheFailureCount() {
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.failed(0, 3, MAX_OPEN);
+		breaker.failed(0, 3, MAX_OPEN);
+		assertFalse(breaker.succeeded());
+		assertFalse(breaker.failed(0, 3, MAX_OPEN));
+		assertTrue(breaker.isClosed());
+	}
+
+	@Test
+	public void thresholdOfZeroNeverOpens() {
+		CircuitBreaker breaker = new CircuitBreaker();
+		for (int i = 0; i < 10; i++) {
+			assertFalse(breaker.failed(0, 0, MAX_OPEN));
+		}
+		assertTrue(breaker.isClosed());
+	}
+
+	@Test
+	public void halfOpensOnceTheOpenTimePassed() {
+		CircuitBreaker breaker = opened(0);
+		assertFalse(breaker.tryHalfOpen(OPEN - 1));
+		assertTrue(breaker.tryHalfOpen(OPEN));
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.tryHalfOpen(OPEN));
+		assertTrue(breaker.succeeded());
+		assertTrue(breaker.isClosed());
+	}
+
+	@Test
+	public void failedTrialDoublesTheOpenTime() {
+		CircuitBreaker breaker = opened(0);
+		breaker.tryHalfOpen(OPEN);
+		assertTrue(breaker.failed(OPEN, 3, MAX_OPEN));
+		assertFalse(breaker.tryHalfOpen(OPEN + 2 * OPEN - 1));
+		assertTrue(breaker.tryHalfOpen(OPEN + 2 * OPEN));
+	}
+
+	@Test
+	public void openTimeIsCappedByTheMaximum() {
+		long max = OPEN + OPEN / 2;
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.failed(0, 1, max);
+		breaker.tryHalfOpen(OPEN);
+		breaker.failed(OPEN, 1, max);
+		assertFalse(breaker.tryHalfOpen(OPEN + max - 1));
+		assertTrue(breaker.tryHalfOpen(OPEN + max));
+	}
+
+	@Test
+	public void abandonedTrialIsRetriedByTheNextPoll() {
+		CircuitBreaker breaker = opened(0);
+		breaker.tryHalfOpen(OPEN);
+		breaker.abandonTrial(OPEN + 1);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertTrue(breaker.tryHalfOpen(OPEN + 1));
+	}
+
+	@Test
+	public void failuresWhileOpenChangeNothing() {
+		CircuitBreaker breaker = opened(0);
+		assertFalse(breaker.failed(1, 3, MAX_OPEN));
+		assertTrue(breaker.tryHalfOpen(OPEN));
+	}
+}
@@ -0,0 +1,81 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.dsa.iot.dslink.node.Node;
+import org.junit.Test;
+
+public class DeviceLimitsTest {
+	private static final long HOUR = DeviceLimits.GROW_BACK_NANOS;
+
+	private static DeviceLimits limits() {
+		return new DeviceLimits(new Node("device", null, null));
+	}
+
+	@Test
+	public void refusalHalvesTheRefusedLength() {
+		DeviceLimits limits = limits();
+		assertEquals(125, limits.getMaxRegisters(125));
+		assertTrue(limits.readRefused(false, 100, 0));
+		assertEquals(50, limits.getMaxRegisters(125));
+		assertEquals(40, limits.getMaxRegisters(40));
+		assertEquals(2000, limits.getMaxBits(2000));
+	}
+
+	@Test
+	public void limitNeverDropsBelowAGoodRead() {
+		DeviceLimits limits = limits();
+		limits.readSucceeded(false, 60, 0);
+		assertFalse(limits.readRefused(false, 60, 0));
+		assertTrue(limits.readRefused(false, 100, 0));
+		assertEquals(60, limits.getMaxRegisters(125));
+	}
+
+	@Test
+	public void singleRegisterRefusalTeachesNothing() {
+		DeviceLimits limits = limits();
+		assertFalse(limits.readRefused(true, 1, 0));
+		assertEquals(2000, limits.getMaxBits(2000));
+	}
+
+	@Test
+	public void limitOnlyGoesDown() {
+		DeviceLimits limits = limits();
+		limits.readRefused(false, 40, 0);
+		assertFalse(limits.readRefused(false, 100, 0));
+		assertEquals(20, limits.getMaxRegisters(125));
+	}
+
+	@Test
+	public void limitGrowsBackAfterAnHourWithoutRefusals() {
+		DeviceLimits limits = limits();
+		limits.readRefused(false, 100, 0);
+		assertFalse(limits.readSucceeded(false, 50, HOUR - 1));
+		assertTrue(limits.readSucceeded(false, 50, HOUR));
+		assertEquals(62, limits.getMaxRegisters(125));
+		assertFalse(limits.readSucceeded(false, 62, HOUR + 1));
+	}
+
+	@Test
+	public void limitIsForgottenAtTheProtocolMaximum() {
+		DeviceLimits limits = limits();
+		limits.readRefused(false, 240, 0);
+		assertEquals(120, limits.getMaxRegisters(125));
+		assertTrue(limits.readSucceeded(false, 120, HOUR));
+		assertEquals(125, limits.getMaxRegisters(125));
+		assertFalse(limits.readSucceeded(false, 125, 2 * HOUR));
+	}
+
+	@Test
+	public void refusedFunctionCodesAreRemembered() {
+		DeviceLimits limits = limits();
+		assertTrue(limits.isSupported(3));
+		assertTrue(limits.functionRefused(3));
+		assertFalse(limits.functionRefused(3));
+		assertFalse(limits.isSupported(3));
+		limits.reset();
+		assertTrue(limits.isSupported(3));
+	}
+}
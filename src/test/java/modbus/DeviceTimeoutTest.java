@@ -0,0 +1,72 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DeviceTimeoutTest {
+	private static boolean record(DeviceTimeout timeout, int count, long millis) {
+		boolean changed = false;
+		for (int i = 0; i < count; i++) {
+			changed |= timeout.record(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+		return changed;
+	}
+
+	@Test
+	public void defaultsToTheConnections() {
+		DeviceTimeout timeout = new DeviceTimeout();
+		assertEquals(0, timeout.getTimeout(500));
+		assertEquals(-1, timeout.getRetries());
+	}
+
+	@Test
+	public void fixedTimeoutIgnoresResponseTimes() {
+		DeviceTimeout timeout = new DeviceTimeout();
+		timeout.configure(800, 2, false, 3, 50);
+		assertFalse(record(timeout, 100, 10));
+		assertEquals(800, timeout.getTimeout(500));
+		assertEquals(2, timeout.getRetries());
+	}
+
+	@Test
+	public void automaticTimeoutWaitsForEnoughSamples() {
+		DeviceTimeout timeout = new DeviceTimeout();
+		timeout.configure(1000, -1, true, 3, 50);
+		assertFalse(record(timeout, DeviceTimeout.MIN_SAMPLES - 1, 100));
+		assertEquals(1000, timeout.getTimeout(500));
+	}
+
+	@Test
+	public void automaticTimeoutFollowsThePercentile() {
+		DeviceTimeout timeout = new DeviceTimeout();
+		timeout.configure(1000, -1, true, 3, 50);
+		assertTrue(record(timeout, DeviceTimeout.MIN_SAMPLES + 10, 100));
+		assertEquals(300, timeout.getTimeout(500));
+	}
+
+	@Test
+	public void automaticTimeoutStaysBetweenTheMinimumAndTheConfigured() {
+		DeviceTimeout timeout = new DeviceTimeout();
+		timeout.configure(1000, -1, true, 3, 50);
+		record(timeout, DeviceTimeout.MIN_SAMPLES + 10, 5);
+		assertEquals(50, timeout.getTimeout(500));
+
+		timeout = new DeviceTimeout();
+		timeout.configure(1000, -1, true, 3, 50);
+		record(timeout, DeviceTimeout.MIN_SAMPLES + 10, 600);
+		assertEquals(1000, timeout.getTimeout(500));
+	}
+
+	@Test
+	public void automaticTimeoutWithoutOwnTimeoutIsCappedByTheConnections() {
+		DeviceTimeout timeout = new DeviceTimeout();
+		timeout.configure(0, -1, true, 3, 50);
+		record(timeout, DeviceTimeout.MIN_SAMPLES + 10, 600);
+		assertEquals(500, timeout.getTimeout(500));
+	}
+}
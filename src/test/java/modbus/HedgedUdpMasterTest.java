@@ -0,0 +1,209 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+import com.serotonin.modbus4j.msg.ReadHoldingRegistersRequest;
+import com.serotonin.modbus4j.msg.ReadResponse;
+
+public class HedgedUdpMasterTest {
+	/*
+	 * A device on a local socket. Each request reads the register at its
+	 * offset, and the device answers with the offset as the value.
+	 */
+	private abstract static class Device implements Runnable {
+		final DatagramSocket socket;
+		// copies of each offset received so far
+		private final Map<Integer, Integer> copies = new HashMap<Integer, Integer>();
+
+		Device() throws IOException {
+			socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			Thread t = new Thread(this, "test udp device");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		/*
+		 * @param copy
+		 *            1 for the first datagram of the offset, 2 for the next
+		 */
+		abstract void handle(int offset, int copy, byte[] response, SocketAddress from) throws IOException;
+
+		@Override
+		public void run() {
+			byte[] buf = new byte[300];
+			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+			while (!socket.isClosed()) {
+				try {
+					packet.setLength(buf.length);
+					socket.receive(packet);
+					int offset = ((buf[8] & 0xff) << 8) | (buf[9] & 0xff);
+					byte[] response = new byte[] { buf[0], buf[1], 0, 0, 0, 5, buf[6], 3, 2, buf[8], buf[9] };
+					int copy;
+					synchronized (copies) {
+						Integer n = copies.get(offset);
+						copy = n == null ? 1 : n + 1;
+						copies.put(offset, copy);
+					}
+					handle(offset, copy, response, packet.getSocketAddress());
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+
+		void send(byte[] response, SocketAddress to) throws IOException {
+			socket.send(new DatagramPacket(response, response.length, to));
+		}
+	}
+
+	private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+	private Device device;
+	private HedgedUdpMaster master;
+
+	@Before
+	public void setUp() {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	@After
+	public void shutdown() {
+		if (master != null) {
+			master.destroy();
+		}
+		if (device != null) {
+			device.socket.close();
+		}
+		timer.shutdownNow();
+	}
+
+	private void start(Device d) throws Exception {
+		device = d;
+		master = new HedgedUdpMaster(timer, "127.0.0.1", d.socket.getLocalPort(), 4, 0.5);
+		master.init();
+	}
+
+	private RequestQueue.Transaction read(int offset, int timeout) throws ModbusTransportException {
+		RequestQueue.Transaction t = new RequestQueue.Transaction(new ReadHoldingRegistersRequest(1, offset, 1),
+				RequestQueue.Priority.READ, timeout, 0);
+		master.submit(t);
+		return t;
+	}
+
+	private static int value(RequestQueue.Transaction t) throws ModbusTransportException {
+		return ((ReadResponse) t.await(5, TimeUnit.SECONDS)).getShortData()[0];
+	}
+
+	@Test
+	public void lateResponseIsDropped() throws Exception {
+		start(new Device() {
+			@Override
+			void handle(final int offset, int copy, final byte[] response, final SocketAddress from)
+					throws IOException {
+				if (offset != 1) {
+					send(response, from);
+					return;
+				}
+				// answers after the request timed out
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							send(response, from);
+						} catch (IOException e) {
+							// the test is over
+						}
+					}
+				}, 200, TimeUnit.MILLISECONDS);
+			}
+		});
+		RequestQueue.Transaction late = read(1, 50);
+		try {
+			late.await(5, TimeUnit.SECONDS);
+			fail("the late response was taken");
+		} catch (ModbusTransportException e) {
+			assertEquals("request timed out", e.getMessage());
+		}
+		// the late response arrives meanwhile, and is counted as received
+		Thread.sleep(300);
+		assertEquals(0, master.takeLossRate(), 0.001);
+		assertEquals(2, value(read(2, 2000)));
+	}
+
+	@Test
+	public void duplicateResponseIsDropped() throws Exception {
+		start(new Device() {
+			@Override
+			void handle(int offset, int copy, byte[] response, SocketAddress from) throws IOException {
+				send(response, from);
+				if (offset == 1) {
+					response[10] = 99;
+					send(response, from);
+				}
+			}
+		});
+		assertEquals(1, value(read(1, 2000)));
+		assertEquals(2, value(read(2, 2000)));
+	}
+
+	@Test
+	public void unansweredDatagramsCountAsLost() throws Exception {
+		start(new Device() {
+			@Override
+			void handle(int offset, int copy, byte[] response, SocketAddress from) throws IOException {
+				if (offset % 2 == 0) {
+					send(response, from);
+				}
+			}
+		});
+		for (int offset = 0; offset < 4; offset++) {
+			RequestQueue.Transaction t = read(offset, 50);
+			try {
+				t.await(5, TimeUnit.SECONDS);
+			} catch (ModbusTransportException e) {
+				// the odd offsets time out
+			}
+		}
+		assertEquals(0.5, master.takeLossRate(), 0.001);
+		assertEquals(0, master.takeLossRate(), 0.001);
+	}
+
+	@Test
+	public void lostDatagramIsSentAgainBeforeTheTimeout() throws Exception {
+		start(new Device() {
+			@Override
+			void handle(int offset, int copy, byte[] response, SocketAddress from) throws IOException {
+				// the first datagram of offset 1000 is lost
+				if (offset != 1000 || copy > 1) {
+					send(response, from);
+				}
+			}
+		});
+		// enough response times for a hedge delay
+		for (int i = 0; i < HedgedUdpMaster.MIN_SAMPLES * 2; i++) {
+			value(read(i, 2000));
+		}
+		master.takeHedged();
+
+		long start = System.nanoTime();
+		assertEquals(1000, value(read(1000, 5000)));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		assertTrue(master.takeHedged() > 0);
+	}
+}
@@ -0,0 +1,40 @@
+package modbus;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.serotonin.modbus4j.code.RegisterRange;
+
+public class IllegalAddressesTest {
+	private static final int HOLDING = RegisterRange.HOLDING_REGISTER;
+	private static final int COIL = RegisterRange.COIL_STATUS;
+
+	@Test
+	public void parsedRangesAreInclusive() {
+		IllegalAddresses illegal = IllegalAddresses.parse("holding 10-20, coil 5");
+		assertFalse(illegal.intersects(HOLDING, 0, 9));
+		assertTrue(illegal.intersects(HOLDING, 0, 10));
+		assertTrue(illegal.intersects(HOLDING, 12, 13));
+		assertTrue(illegal.intersects(HOLDING, 20, 30));
+		assertFalse(illegal.intersects(HOLDING, 21, 30));
+		assertTrue(illegal.intersects(COIL, 5, 5));
+		assertFalse(illegal.intersects(COIL, 6, 10));
+		assertFalse(illegal.intersects(RegisterRange.INPUT_REGISTER, 0, 100));
+	}
+
+	@Test
+	public void invalidEntriesAreSkipped() {
+		IllegalAddresses illegal = IllegalAddresses.parse("bogus 1, holding x, , input 3");
+		assertTrue(illegal.intersects(RegisterRange.INPUT_REGISTER, 3, 3));
+		assertFalse(illegal.intersects(HOLDING, 0, 100));
+	}
+
+	@Test
+	public void emptyGapIntersectsNothing() {
+		IllegalAddresses illegal = IllegalAddresses.parse("holding 5");
+		assertFalse(illegal.intersects(HOLDING, 6, 5));
+		assertFalse(IllegalAddresses.parse(null).intersects(HOLDING, 0, 100));
+	}
+}
@@ -0,0 +1,222 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+import com.serotonin.modbus4j.msg.ReadHoldingRegistersRequest;
+import com.serotonin.modbus4j.msg.ReadResponse;
+
+public class MbapMasterTest {
+	private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+
+	/*
+	 * Keeps the frames it writes instead of sending them.
+	 */
+	static class TestMaster extends MbapMaster {
+		private final List<byte[]> frames = new ArrayList<byte[]>();
+
+		TestMaster(ScheduledThreadPoolExecutor timer, int maxInFlight) {
+			super(timer, "localhost", 502, maxInFlight);
+		}
+
+		@Override
+		public void init() {
+			initialized = true;
+			connected = true;
+		}
+
+		@Override
+		void write(byte[] frame) {
+			synchronized (frames) {
+				frames.add(frame);
+				frames.notifyAll();
+			}
+		}
+
+		@Override
+		void close(ModbusTransportException cause) {
+			failPending(cause);
+		}
+
+		/*
+		 * @return the transaction id of the n-th frame written
+		 */
+		int frameId(int n) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+			synchronized (frames) {
+				while (frames.size() <= n && System.currentTimeMillis() < end) {
+					frames.wait(50);
+				}
+				assertTrue("frame " + n + " was not written", frames.size() > n);
+				byte[] f = frames.get(n);
+				return ((f[0] & 0xff) << 8) | (f[1] & 0xff);
+			}
+		}
+
+		/*
+		 * @return the start offset read by the n-th frame
+		 */
+		int frameOffset(int n) throws InterruptedException {
+			frameId(n);
+			synchronized (frames) {
+				byte[] f = frames.get(n);
+				// MBAP header, unit id, function code
+				return ((f[8] & 0xff) << 8) | (f[9] & 0xff);
+			}
+		}
+
+		int frameCount() {
+			synchronized (frames) {
+				return frames.size();
+			}
+		}
+	}
+
+	@After
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	private static RequestQueue.Transaction read(int slaveId, int timeout, int retries)
+			throws ModbusTransportException {
+		return new RequestQueue.Transaction(new ReadHoldingRegistersRequest(slaveId, 0, 1),
+				RequestQueue.Priority.READ, timeout, retries);
+	}
+
+	private static byte[] response(int slaveId, int value) {
+		return new byte[] { (byte) slaveId, 3, 2, (byte) (value >> 8), (byte) value };
+	}
+
+	private static int value(RequestQueue.Transaction t) throws ModbusTransportException {
+		return ((ReadResponse) t.await(5, TimeUnit.SECONDS)).getShortData()[0];
+	}
+
+	@Test
+	public void responsesAreMatchedByTransactionId() throws Exception {
+		TestMaster master = new TestMaster(timer, 2);
+		master.init();
+		RequestQueue.Transaction first = read(1, 5000, 0);
+		RequestQueue.Transaction second = read(1, 5000, 0);
+		master.submit(first);
+		master.submit(second);
+		int firstId = master.frameId(0);
+		int secondId = master.frameId(1);
+		assertNotEquals(firstId, secondId);
+
+		// out of order
+		master.received(secondId, response(1, 22));
+		assertTrue(second.isDone());
+		assertFalse(first.isDone());
+		master.received(firstId, response(1, 11));
+		assertEquals(11, value(first));
+		assertEquals(22, value(second));
+	}
+
+	@Test
+	public void unknownAndDuplicateResponsesAreDropped() throws Exception {
+		TestMaster master = new TestMaster(timer, 1);
+		master.init();
+		RequestQueue.Transaction t = read(1, 5000, 0);
+		master.submit(t);
+		int id = master.frameId(0);
+		master.received(id + 1, response(1, 99));
+		assertFalse(t.isDone());
+		master.received(id, response(1, 7));
+		master.received(id, response(1, 8));
+		assertEquals(7, value(t));
+	}
+
+	@Test
+	public void responseOfAnotherUnitFailsTheTransaction() throws Exception {
+		TestMaster master = new TestMaster(timer, 1);
+		master.init();
+		RequestQueue.Transaction t = read(1, 5000, 0);
+		master.submit(t);
+		master.received(master.frameId(0), response(2, 7));
+		try {
+			t.await(5, TimeUnit.SECONDS);
+			fail("a response of another unit was accepted");
+		} catch (ModbusTransportException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void timedOutAttemptIsRetriedUnderANewId() throws Exception {
+		TestMaster master = new TestMaster(timer, 1);
+		master.init();
+		RequestQueue.Transaction t = read(1, 50, 1);
+		master.submit(t);
+		int firstId = master.frameId(0);
+		int retryId = master.frameId(1);
+		assertNotEquals(firstId, retryId);
+
+		// the late answer to the first attempt is not taken for the retry's
+		master.received(firstId, response(1, 1));
+		assertFalse(t.isDone());
+		master.received(retryId, response(1, 2));
+		assertEquals(2, value(t));
+	}
+
+	@Test
+	public void failsOnceTheRetriesAreUsedUp() throws Exception {
+		TestMaster master = new TestMaster(timer, 1);
+		master.init();
+		RequestQueue.Transaction t = read(1, 20, 1);
+		master.submit(t);
+		try {
+			t.await(5, TimeUnit.SECONDS);
+			fail("the request did not time out");
+		} catch (ModbusTransportException e) {
+			assertEquals("request timed out", e.getMessage());
+		}
+		assertEquals(2, master.frameCount());
+	}
+
+	@Test
+	public void waitingTransactionsGoOutAsTheFirstCompletes() throws Exception {
+		TestMaster master = new TestMaster(timer, 1);
+		master.init();
+		RequestQueue.Transaction first = read(1, 5000, 0);
+		RequestQueue.Transaction second = read(1, 5000, 0);
+		master.submit(first);
+		master.submit(second);
+		int id = master.frameId(0);
+		assertEquals(1, master.frameCount());
+		master.received(id, response(1, 1));
+		master.received(master.frameId(1), response(1, 2));
+		assertEquals(1, value(first));
+		assertEquals(2, value(second));
+	}
+
+	@Test
+	public void aLongQueueFailsWhenTheConnectionCloses() throws Exception {
+		TestMaster master = new TestMaster(timer, 1);
+		master.init();
+		List<RequestQueue.Transaction> transactions = new ArrayList<RequestQueue.Transaction>();
+		for (int i = 0; i < 20000; i++) {
+			RequestQueue.Transaction t = read(1, 5000, 0);
+			transactions.add(t);
+			master.submit(t);
+		}
+		master.frameId(0);
+		// every waiting transaction fails right away, one after the other
+		master.close(new ModbusTransportException("connection closed"));
+		for (RequestQueue.Transaction t : transactions) {
+			assertTrue(t.isDone());
+		}
+		assertEquals(1, master.frameCount());
+	}
+}
@@ -0,0 +1,95 @@
+package modbus;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PointStateTest {
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private static PointDescriptor point(double deadband, double deadbandPercent, long maxSilenceNanos) {
+		return new PointDescriptor(PointType.HOLDING, DataType.INT16, 1, 0, 1, -1, 1, 0, null, deadband,
+				deadbandPercent, maxSilenceNanos);
+	}
+
+	@Test
+	public void withoutDeadbandEveryChangeIsPublished() {
+		PointDescriptor point = point(0, 0, 0);
+		PointState state = new PointState();
+		assertTrue(state.checkNumber(point, 10, 0));
+		assertFalse(state.checkNumber(point, 10, 1));
+		assertTrue(state.checkNumber(point, 10.01, 2));
+	}
+
+	@Test
+	public void absoluteDeadbandIsMeasuredFromTheLastPublishedValue() {
+		PointDescriptor point = point(0.5, 0, 0);
+		PointState state = new PointState();
+		assertTrue(state.checkNumber(point, 10, 0));
+		assertFalse(state.checkNumber(point, 10.4, 1));
+		assertFalse(state.checkNumber(point, 9.6, 2));
+		assertTrue(state.checkNumber(point, 10.6, 3));
+		assertFalse(state.checkNumber(point, 10.2, 4));
+	}
+
+	@Test
+	public void percentDeadbandIsRelativeToTheLastPublishedValue() {
+		PointDescriptor point = point(0, 10, 0);
+		PointState state = new PointState();
+		assertTrue(state.checkNumber(point, 100, 0));
+		assertFalse(state.checkNumber(point, 105, 1));
+		assertTrue(state.checkNumber(point, 111, 2));
+		assertFalse(state.checkNumber(point, 121, 3));
+	}
+
+	@Test
+	public void eitherDeadbandPublishes() {
+		PointDescriptor point = point(1, 50, 0);
+		PointState state = new PointState();
+		assertTrue(state.checkNumber(point, 100, 0));
+		assertTrue(state.checkNumber(point, 102, 1));
+	}
+
+	@Test
+	public void unchangedValueIsPublishedAfterTheMaxSilence() {
+		PointDescriptor point = point(0, 0, SECOND);
+		PointState state = new PointState();
+		assertTrue(state.checkNumber(point, 10, 0));
+		assertFalse(state.checkNumber(point, 10, SECOND - 1));
+		assertTrue(state.checkNumber(point, 10, SECOND));
+		assertFalse(state.checkNumber(point, 10, SECOND + 1));
+	}
+
+	@Test
+	public void notANumberIsOnlyPublishedWhenItChanges() {
+		PointDescriptor point = point(0.5, 0, 0);
+		PointState state = new PointState();
+		assertTrue(state.checkNumber(point, Double.NaN, 0));
+		assertFalse(state.checkNumber(point, Double.NaN, 1));
+		assertTrue(state.checkNumber(point, 1, 2));
+		assertTrue(state.checkNumber(point, Double.NaN, 3));
+	}
+
+	@Test
+	public void invalidatedValueIsPublishedAgain() {
+		PointDescriptor point = point(0, 0, 0);
+		PointState state = new PointState();
+		assertTrue(state.checkNumber(point, 10, 0));
+		state.invalidate();
+		assertTrue(state.checkNumber(point, 10, 1));
+	}
+
+	@Test
+	public void objectsArePublishedWhenTheyChange() {
+		PointDescriptor point = point(0, 0, 0);
+		PointState state = new PointState();
+		assertTrue(state.checkObject(point, "a", 0));
+		assertFalse(state.checkObject(point, "a", 1));
+		assertTrue(state.checkObject(point, "b", 2));
+		assertTrue(state.checkNumber(point, 1, 3));
+		assertTrue(state.checkObject(point, "b", 4));
+	}
+}
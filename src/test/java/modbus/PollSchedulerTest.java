@@ -0,0 +1,129 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PollSchedulerTest {
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static class TestClock implements PollScheduler.Clock {
+		long nanos;
+		long millis;
+
+		@Override
+		public long nanoTime() {
+			return nanos;
+		}
+
+		@Override
+		public long currentTimeMillis() {
+			return millis;
+		}
+	}
+
+	private final TestClock clock = new TestClock();
+	private final PollScheduler scheduler = new PollScheduler(clock);
+
+	private static PollTask task(long intervalMs, boolean aligned, Object connection) {
+		return new PollTask(null, null, new PollGroup("group", intervalMs, aligned), connection);
+	}
+
+	@Test
+	public void tasksOfAConnectionAreTakenAtTheirStaggeredPhases() {
+		PollTask first = task(900, false, "connection");
+		PollTask second = task(900, false, "connection");
+		PollTask third = task(900, false, "connection");
+		scheduler.add(first);
+		scheduler.add(second);
+		scheduler.add(third);
+
+		assertEquals(Collections.singletonList(first), scheduler.takeDue(0));
+		assertTrue(scheduler.takeDue(299 * MS).isEmpty());
+		assertEquals(Collections.singletonList(second), scheduler.takeDue(300 * MS));
+		assertEquals(Collections.singletonList(third), scheduler.takeDue(650 * MS));
+		assertTrue(scheduler.takeDue(10000 * MS).isEmpty());
+	}
+
+	@Test
+	public void earliestDeadlineIsTakenFirstAcrossConnections() {
+		PollTask fast = task(1000, false, "fast");
+		PollTask slow = task(1000, false, "slow");
+		PollTask fast2 = task(100, false, "fast");
+		scheduler.add(fast);
+		clock.nanos = 20 * MS;
+		scheduler.add(slow);
+		// the second task of the connection moves the first one to its new phase
+		clock.nanos = 30 * MS;
+		scheduler.add(fast2);
+
+		assertEquals(Collections.singletonList(slow), scheduler.takeDue(60 * MS));
+		assertEquals(Collections.singletonList(fast2), scheduler.takeDue(60 * MS));
+		assertTrue(scheduler.takeDue(60 * MS).isEmpty());
+		assertEquals(Collections.singletonList(fast), scheduler.takeDue(1000 * MS));
+	}
+
+	@Test
+	public void cancelledTaskIsNotTaken() {
+		PollTask task = task(1000, false, "connection");
+		scheduler.add(task);
+		scheduler.cancel(task);
+		assertTrue(scheduler.takeDue(10000 * MS).isEmpty());
+	}
+
+	@Test
+	public void alignedTasksDueTogetherAreTakenAsOneSnapshot() {
+		clock.nanos = 5000 * MS;
+		clock.millis = 1000000250;
+		PollTask first = task(1000, true, "connection");
+		PollTask second = task(1000, true, "connection");
+		PollTask other = task(1000, false, "connection");
+		scheduler.add(first);
+		scheduler.add(second);
+		scheduler.add(other);
+
+		// the unaligned task is due right away, the aligned ones on the next second
+		assertEquals(Collections.singletonList(other), scheduler.takeDue(5000 * MS));
+		assertTrue(scheduler.takeDue(5749 * MS).isEmpty());
+		assertEquals(new HashSet<PollTask>(Arrays.asList(first, second)),
+				new HashSet<PollTask>(scheduler.takeDue(5750 * MS)));
+	}
+
+	@Test
+	public void deadlinesAreComparedAcrossTheNanoTimeOverflow() {
+		PollTask before = task(1000, false, "connection");
+		before.due = Long.MAX_VALUE - 10;
+		PollTask after = task(1000, false, "connection");
+		after.due = Long.MIN_VALUE + 10;
+		assertTrue(before.compareTo(after) < 0);
+		assertTrue(after.compareTo(before) > 0);
+	}
+
+	@Test
+	public void nextDeadlineIsOnThePhaseGrid() {
+		PollTask task = task(1000, false, "connection");
+		task.epoch = 0;
+		task.phaseNanos = 250 * MS;
+		assertEquals(250 * MS, scheduler.nextDue(task, 0));
+		assertEquals(1250 * MS, scheduler.nextDue(task, 250 * MS));
+		assertEquals(1250 * MS, scheduler.nextDue(task, 1249 * MS));
+		// missed deadlines are skipped
+		assertEquals(5250 * MS, scheduler.nextDue(task, 4300 * MS));
+	}
+
+	@Test
+	public void alignedDeadlineIsOnAWallClockBoundary() {
+		PollTask task = task(1000, true, "connection");
+		clock.nanos = 5000 * MS;
+		clock.millis = 1000000250;
+		assertEquals(5750 * MS, scheduler.nextDue(task, 5000 * MS));
+		// a deadline on the boundary itself is followed by the next one
+		assertEquals(6750 * MS, scheduler.nextDue(task, 5750 * MS));
+	}
+}
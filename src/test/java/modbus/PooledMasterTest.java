@@ -0,0 +1,156 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.serotonin.modbus4j.ModbusMaster;
+import com.serotonin.modbus4j.exception.ModbusInitException;
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+import com.serotonin.modbus4j.msg.ModbusRequest;
+import com.serotonin.modbus4j.msg.ModbusResponse;
+import com.serotonin.modbus4j.msg.ReadHoldingRegistersRequest;
+
+public class PooledMasterTest {
+	/*
+	 * A socket that records the unit ids it was sent requests for.
+	 */
+	private static class TestSocket extends ModbusMaster implements TimedMaster {
+		final boolean refuse;
+		final List<Integer> sent = new ArrayList<Integer>();
+		int sentTimeout;
+		boolean destroyed;
+
+		TestSocket(boolean refuse) {
+			this.refuse = refuse;
+		}
+
+		@Override
+		public void init() throws ModbusInitException {
+			if (refuse) {
+				throw new ModbusInitException("refused");
+			}
+			initialized = true;
+		}
+
+		@Override
+		public void destroy() {
+			initialized = false;
+			destroyed = true;
+		}
+
+		@Override
+		public ModbusResponse sendImpl(ModbusRequest request) throws ModbusTransportException {
+			return send(request, getTimeout(), getRetries());
+		}
+
+		@Override
+		public ModbusResponse send(ModbusRequest request, int timeout, int retries) {
+			sent.add(request.getSlaveId());
+			sentTimeout = timeout;
+			return null;
+		}
+	}
+
+	private static PooledMaster pool(TestSocket... sockets) {
+		return new PooledMaster(new ArrayList<ModbusMaster>(Arrays.asList(sockets)));
+	}
+
+	private static ModbusRequest read(int slaveId) throws ModbusTransportException {
+		return new ReadHoldingRegistersRequest(slaveId, 0, 1);
+	}
+
+	@Test
+	public void unitIdsAreSpreadOverTheSockets() throws Exception {
+		TestSocket a = new TestSocket(false);
+		TestSocket b = new TestSocket(false);
+		TestSocket c = new TestSocket(false);
+		PooledMaster pool = pool(a, b, c);
+		pool.init();
+		assertEquals(3, pool.size());
+		assertEquals(1, pool.socketFor(4));
+		assertSame(b, pool.socket(4));
+		assertSame(c, pool.socket(5));
+		assertSame(a, pool.socket(6));
+	}
+
+	@Test
+	public void requestsOfAUnitGoToItsSocket() throws Exception {
+		TestSocket a = new TestSocket(false);
+		TestSocket b = new TestSocket(false);
+		PooledMaster pool = pool(a, b);
+		pool.init();
+		pool.send(read(1), 300, 0);
+		pool.send(read(2), 300, 0);
+		pool.send(read(3), 300, 0);
+		assertEquals(Arrays.asList(2), a.sent);
+		assertEquals(Arrays.asList(1, 3), b.sent);
+		assertEquals(300, b.sentTimeout);
+	}
+
+	@Test
+	public void refusedSocketsAreLeftOut() throws Exception {
+		TestSocket a = new TestSocket(false);
+		TestSocket refused = new TestSocket(true);
+		TestSocket c = new TestSocket(false);
+		PooledMaster pool = pool(a, refused, c);
+		pool.init();
+		assertTrue(pool.isInitialized());
+		assertTrue(refused.destroyed);
+		// the unit ids of the refused socket are spread over the others
+		assertEquals(2, pool.size());
+		assertSame(a, pool.socket(2));
+		assertSame(c, pool.socket(1));
+		assertSame(a, pool.socket(4));
+	}
+
+	@Test
+	public void initFailsIfEverySocketIsRefused() throws Exception {
+		PooledMaster pool = pool(new TestSocket(true), new TestSocket(true));
+		try {
+			pool.init();
+			fail("a pool without sockets was initialized");
+		} catch (ModbusInitException e) {
+			assertEquals("refused", e.getMessage());
+		}
+		assertFalse(pool.isInitialized());
+		assertNull(pool.socket(1));
+		try {
+			pool.send(read(1), 300, 0);
+			fail("a request was sent without a socket");
+		} catch (ModbusTransportException e) {
+			assertEquals("not connected", e.getMessage());
+		}
+	}
+
+	@Test
+	public void droppedSocketUninitializesThePool() throws Exception {
+		TestSocket a = new TestSocket(false);
+		TestSocket b = new TestSocket(false);
+		PooledMaster pool = pool(a, b);
+		pool.init();
+		b.destroy();
+		assertFalse(pool.isInitialized());
+	}
+
+	@Test
+	public void settingsReachEverySocket() throws Exception {
+		TestSocket a = new TestSocket(false);
+		TestSocket b = new TestSocket(true);
+		PooledMaster pool = pool(a, b);
+		pool.setTimeout(1234);
+		pool.setRetries(3);
+		assertEquals(1234, a.getTimeout());
+		assertEquals(1234, b.getTimeout());
+		assertEquals(3, b.getRetries());
+	}
+}
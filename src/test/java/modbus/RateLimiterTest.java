@@ -0,0 +1,59 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void notLimitedUntilConfigured() {
+		RateLimiter limiter = new RateLimiter();
+		assertFalse(limiter.isLimited());
+		limiter.configure(0, 1, 10);
+		assertTrue(limiter.isLimited());
+		limiter.configure(0, 1, 0);
+		assertFalse(limiter.isLimited());
+	}
+
+	@Test
+	public void burstGoesOutAtOnceAndTheRestAtTheRate() {
+		RateLimiter limiter = new RateLimiter();
+		limiter.configure(10, 2, 0);
+		// long enough after creation for the bucket to be full
+		long now = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		assertEquals(0, limiter.reserve(now));
+		assertEquals(0, limiter.reserve(now));
+		assertEquals(100 * MS, limiter.reserve(now));
+		assertEquals(200 * MS, limiter.reserve(now));
+		// the slots are booked, so time passing shortens the wait
+		assertEquals(200 * MS, limiter.reserve(now + 100 * MS));
+	}
+
+	@Test
+	public void requestsKeepTheMinimumGap() {
+		RateLimiter limiter = new RateLimiter();
+		limiter.configure(0, 1, 50);
+		long now = System.nanoTime();
+		assertEquals(0, limiter.reserve(now));
+		assertEquals(50 * MS, limiter.reserve(now));
+		assertEquals(70 * MS, limiter.reserve(now + 30 * MS));
+		assertEquals(0, limiter.reserve(now + 500 * MS));
+	}
+
+	@Test
+	public void averageDelayFollowsTheDelays() {
+		RateLimiter limiter = new RateLimiter();
+		limiter.configure(0, 1, 100);
+		long now = System.nanoTime();
+		assertEquals(0, limiter.getAverageDelayMs());
+		limiter.reserve(now);
+		limiter.reserve(now);
+		assertEquals(20, limiter.getAverageDelayMs());
+	}
+}
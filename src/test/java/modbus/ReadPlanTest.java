@@ -0,0 +1,158 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.dsa.iot.dslink.node.Node;
+import org.junit.Test;
+
+import com.serotonin.modbus4j.code.RegisterRange;
+
+public class ReadPlanTest {
+	private final Map<Node, PointDescriptor> points = new LinkedHashMap<Node, PointDescriptor>();
+
+	private void add(PointType type, int offset) {
+		points.put(new Node(type + " " + offset, null, null),
+				new PointDescriptor(type, DataType.INT16, 1, offset, 1, -1, 1, 0, null, 0, 0, 0));
+	}
+
+	private ReadPlan build(boolean batch, int maxGap, int maxRegisters, IllegalAddresses illegal) {
+		return ReadPlan.build(1, points, batch, maxGap, maxGap, maxRegisters, 2000, illegal);
+	}
+
+	@Test
+	public void noPointsGiveTheEmptyPlan() {
+		ReadPlan plan = ReadPlan.build(1, Collections.<Node, PointDescriptor> emptyMap(), true, 0, 0, 125, 2000,
+				new IllegalAddresses());
+		assertSame(ReadPlan.EMPTY, plan);
+		assertTrue(plan.isEmpty());
+	}
+
+	@Test
+	public void adjacentPointsShareARequest() {
+		add(PointType.HOLDING, 2);
+		add(PointType.HOLDING, 0);
+		add(PointType.HOLDING, 1);
+		ReadPlan plan = build(true, 0, 125, new IllegalAddresses());
+		assertEquals(1, plan.blocks.size());
+		ReadPlan.Block block = plan.blocks.get(0);
+		assertEquals(RegisterRange.HOLDING_REGISTER, block.range);
+		assertEquals(0, block.start);
+		assertEquals(3, block.length);
+		assertEquals(3, block.points.length);
+		assertEquals(0, block.descriptors[0].offset);
+		assertEquals(2, block.descriptors[2].offset);
+	}
+
+	@Test
+	public void gapsUpToTheLimitAreReadAlong() {
+		add(PointType.HOLDING, 0);
+		add(PointType.HOLDING, 5);
+		assertEquals(2, build(true, 3, 125, new IllegalAddresses()).blocks.size());
+
+		ReadPlan plan = build(true, 4, 125, new IllegalAddresses());
+		assertEquals(1, plan.blocks.size());
+		assertEquals(6, plan.blocks.get(0).length);
+	}
+
+	@Test
+	public void requestsStayWithinTheMaximumCount() {
+		for (int i = 0; i < 6; i++) {
+			add(PointType.HOLDING, i);
+		}
+		ReadPlan plan = build(true, 0, 4, new IllegalAddresses());
+		assertEquals(2, plan.blocks.size());
+		assertEquals(4, plan.blocks.get(0).length);
+		assertEquals(4, plan.blocks.get(1).start);
+		assertEquals(2, plan.blocks.get(1).length);
+	}
+
+	@Test
+	public void gapsWithIllegalAddressesAreNotRead() {
+		add(PointType.HOLDING, 0);
+		add(PointType.HOLDING, 4);
+		IllegalAddresses illegal = new IllegalAddresses();
+		illegal.add(RegisterRange.HOLDING_REGISTER, 2, 2);
+		assertEquals(2, build(true, 10, 125, illegal).blocks.size());
+
+		illegal = new IllegalAddresses();
+		illegal.add(RegisterRange.INPUT_REGISTER, 2, 2);
+		assertEquals(1, build(true, 10, 125, illegal).blocks.size());
+	}
+
+	@Test
+	public void rangesDoNotShareARequest() {
+		add(PointType.HOLDING, 0);
+		add(PointType.INPUT, 1);
+		assertEquals(2, build(true, 10, 125, new IllegalAddresses()).blocks.size());
+	}
+
+	@Test
+	public void withoutBatchingEveryPointHasItsOwnRequest() {
+		add(PointType.HOLDING, 0);
+		add(PointType.HOLDING, 1);
+		add(PointType.HOLDING, 2);
+		ReadPlan plan = build(false, 10, 125, new IllegalAddresses());
+		assertEquals(3, plan.blocks.size());
+		for (ReadPlan.Block block : plan.blocks) {
+			assertEquals(1, block.length);
+		}
+	}
+
+	@Test
+	public void slicesReadOnlyTheirPoints() throws Exception {
+		add(PointType.HOLDING, 0);
+		add(PointType.HOLDING, 3);
+		add(PointType.HOLDING, 7);
+		ReadPlan.Block slice = build(true, 10, 125, new IllegalAddresses()).blocks.get(0).slice(1, 3);
+		assertEquals(3, slice.start);
+		assertEquals(5, slice.length);
+		assertEquals(2, slice.points.length);
+	}
+
+	@Test
+	public void planIsOutdatedOnceTheGapLimitsMovedFarEnough() {
+		add(PointType.HOLDING, 0);
+		ReadPlan plan = build(true, 10, 125, new IllegalAddresses());
+		assertFalse(plan.isOutdated(10, 10));
+		assertFalse(plan.isOutdated(21, 10));
+		assertTrue(plan.isOutdated(22, 10));
+		assertFalse(plan.isOutdated(10, 5));
+		assertTrue(plan.isOutdated(10, 4));
+	}
+
+	@Test
+	public void tcpGapsAreCappedUntilRoundTripsWereMeasured() {
+		add(PointType.HOLDING, 0);
+		add(PointType.HOLDING, 40);
+		CostModel tcp = new CostModel();
+		assertEquals(CostModel.UNLEARNED_MAX_GAP_REGISTERS, tcp.getMaxGapRegisters());
+		assertEquals(2, build(true, tcp.getMaxGapRegisters(), 125, new IllegalAddresses()).blocks.size());
+
+		// with 4 ms round trips, reading the 39 registers between is cheaper than a request
+		for (int i = 0; i < CostModel.MIN_SAMPLES; i++) {
+			tcp.record(2, 4000000);
+		}
+		assertTrue(tcp.getMaxGapRegisters() > 40);
+		assertTrue(tcp.getMaxGapRegisters() < 125);
+		assertEquals(1, build(true, tcp.getMaxGapRegisters(), 125, new IllegalAddresses()).blocks.size());
+	}
+
+	@Test
+	public void fastTcpRoundTripsKeepGapsSmall() {
+		add(PointType.HOLDING, 0);
+		add(PointType.HOLDING, 40);
+		CostModel tcp = new CostModel();
+		for (int i = 0; i < 100; i++) {
+			tcp.record(2, 500000);
+		}
+		assertTrue(tcp.getMaxGapRegisters() < 40);
+		assertEquals(2, build(true, tcp.getMaxGapRegisters(), 125, new IllegalAddresses()).blocks.size());
+	}
+}
@@ -0,0 +1,241 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.serotonin.modbus4j.ModbusMaster;
+import com.serotonin.modbus4j.exception.ModbusTransportException;
+import com.serotonin.modbus4j.msg.ModbusRequest;
+import com.serotonin.modbus4j.msg.ModbusResponse;
+import com.serotonin.modbus4j.msg.ReadHoldingRegistersRequest;
+
+public class RequestQueueTest {
+	private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+
+	@After
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	private static RequestQueue.Transaction transaction(int offset, RequestQueue.Priority priority)
+			throws ModbusTransportException {
+		return new RequestQueue.Transaction(new ReadHoldingRegistersRequest(1, offset, 1), priority, 5000, 0);
+	}
+
+	private static byte[] response() {
+		return new byte[] { 1, 3, 2, 0, 0 };
+	}
+
+	@Test
+	public void writesComeFirstThenReadsThenFastAndSlowPolls() throws Exception {
+		RequestQueue.Transaction slow = transaction(0, RequestQueue.Priority.SLOW_POLL);
+		RequestQueue.Transaction fast = transaction(0, RequestQueue.Priority.FAST_POLL);
+		RequestQueue.Transaction read = transaction(0, RequestQueue.Priority.READ);
+		RequestQueue.Transaction write = transaction(0, RequestQueue.Priority.WRITE);
+		List<RequestQueue.Transaction> l = new ArrayList<RequestQueue.Transaction>(
+				Arrays.asList(slow, fast, read, write));
+		Collections.sort(l);
+		assertEquals(Arrays.asList(write, read, fast, slow), l);
+	}
+
+	@Test
+	public void transactionsOfOnePriorityKeepTheirOrder() throws Exception {
+		RequestQueue.Transaction first = transaction(0, RequestQueue.Priority.READ);
+		RequestQueue.Transaction second = transaction(0, RequestQueue.Priority.READ);
+		assertTrue(first.compareTo(second) < 0);
+		assertTrue(second.compareTo(first) > 0);
+	}
+
+	@Test
+	public void writePreemptsWaitingPolls() throws Exception {
+		MbapMasterTest.TestMaster master = new MbapMasterTest.TestMaster(timer, 1);
+		master.init();
+		// offsets tell the frames apart
+		master.submit(transaction(0, RequestQueue.Priority.SLOW_POLL));
+		master.submit(transaction(1, RequestQueue.Priority.SLOW_POLL));
+		master.submit(transaction(2, RequestQueue.Priority.FAST_POLL));
+		master.submit(transaction(3, RequestQueue.Priority.WRITE));
+
+		List<Integer> sent = new ArrayList<Integer>();
+		for (int i = 0; i < 4; i++) {
+			sent.add(master.frameOffset(i));
+			master.received(master.frameId(i), response());
+		}
+		assertEquals(Arrays.asList(0, 3, 2, 1), sent);
+	}
+
+	@Test
+	public void cancelledTransactionIsNotSent() throws Exception {
+		MbapMasterTest.TestMaster master = new MbapMasterTest.TestMaster(timer, 1);
+		master.init();
+		RequestQueue.Transaction first = transaction(0, RequestQueue.Priority.READ);
+		RequestQueue.Transaction cancelled = transaction(1, RequestQueue.Priority.READ);
+		RequestQueue.Transaction last = transaction(2, RequestQueue.Priority.READ);
+		master.submit(first);
+		master.submit(cancelled);
+		master.submit(last);
+
+		final AtomicInteger callbacks = new AtomicInteger();
+		cancelled.whenDone(new Runnable() {
+			@Override
+			public void run() {
+				callbacks.incrementAndGet();
+			}
+		});
+		assertTrue(cancelled.cancel());
+		assertTrue(cancelled.isDone());
+		assertEquals(1, callbacks.get());
+		try {
+			cancelled.await();
+			fail("a cancelled transaction has no response");
+		} catch (ModbusTransportException e) {
+			assertEquals("request cancelled", e.getMessage());
+		}
+
+		master.received(master.frameId(0), response());
+		assertEquals(2, master.frameOffset(1));
+		master.received(master.frameId(1), response());
+		last.await(5, TimeUnit.SECONDS);
+		assertEquals(2, master.frameCount());
+	}
+
+	private static RequestQueue.Transaction limited(int offset, RequestQueue.Priority priority, RateLimiter limiter)
+			throws ModbusTransportException {
+		return new RequestQueue.Transaction(new ReadHoldingRegistersRequest(1, offset, 1), priority, 5000, 0,
+				limiter);
+	}
+
+	@Test
+	public void rateLimitedWriteStillPreemptsWaitingPolls() throws Exception {
+		RateLimiter limiter = new RateLimiter();
+		limiter.configure(0, 1, 20);
+		MbapMasterTest.TestMaster master = new MbapMasterTest.TestMaster(timer, 1);
+		master.init();
+		master.submit(limited(0, RequestQueue.Priority.SLOW_POLL, limiter));
+		master.submit(limited(1, RequestQueue.Priority.SLOW_POLL, limiter));
+		master.submit(limited(2, RequestQueue.Priority.SLOW_POLL, limiter));
+		// the slot is booked when a transaction leaves the queue, not when it is submitted
+		master.submit(limited(3, RequestQueue.Priority.WRITE, limiter));
+
+		List<Integer> sent = new ArrayList<Integer>();
+		for (int i = 0; i < 4; i++) {
+			sent.add(master.frameOffset(i));
+			master.received(master.frameId(i), response());
+		}
+		assertEquals(Arrays.asList(0, 3, 1, 2), sent);
+	}
+
+	@Test
+	public void cancelledTransactionDoesNotBookASlot() throws Exception {
+		RateLimiter limiter = new RateLimiter();
+		limiter.configure(0, 1, 200);
+		MbapMasterTest.TestMaster master = new MbapMasterTest.TestMaster(timer, 1);
+		master.init();
+		master.submit(limited(0, RequestQueue.Priority.READ, limiter));
+		RequestQueue.Transaction cancelled = limited(1, RequestQueue.Priority.READ, limiter);
+		master.submit(cancelled);
+		RequestQueue.Transaction last = limited(2, RequestQueue.Priority.READ, limiter);
+		master.submit(last);
+		assertTrue(cancelled.cancel());
+
+		master.received(master.frameId(0), response());
+		// the first and the last booked a slot, so the next one is two gaps after the first
+		assertTrue(limiter.reserve(System.nanoTime()) <= TimeUnit.MILLISECONDS.toNanos(400));
+		assertEquals(2, master.frameOffset(1));
+	}
+
+	@Test
+	public void sentTransactionCannotBeCancelled() throws Exception {
+		RequestQueue.Transaction t = transaction(0, RequestQueue.Priority.READ);
+		assertTrue(t.start());
+		assertFalse(t.cancel());
+		assertFalse(t.isDone());
+	}
+
+	/*
+	 * A blocking master that holds every request until it is released, like a
+	 * gateway that stopped answering.
+	 */
+	private static class StalledMaster extends ModbusMaster {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger sent = new AtomicInteger();
+
+		@Override
+		public void init() {
+			initialized = true;
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+		@Override
+		public ModbusResponse sendImpl(ModbusRequest request) throws ModbusTransportException {
+			sent.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new ModbusTransportException(e);
+			}
+			return null;
+		}
+	}
+
+	private static RequestQueue.Endpoint endpoint(LinkExecutors executors, final ModbusMaster master) {
+		return new RequestQueue.Endpoint(executors) {
+			private final Object lock = new Object();
+
+			@Override
+			ModbusMaster getMaster() {
+				return master;
+			}
+
+			@Override
+			Object getSendLock() {
+				return lock;
+			}
+		};
+	}
+
+	@Test
+	public void stalledMastersDoNotHoldUpALiveOne() throws Exception {
+		LinkExecutors executors = new LinkExecutors();
+		List<StalledMaster> stalled = new ArrayList<StalledMaster>();
+		try {
+			// more than a shared pool of 32 request threads would have held
+			for (int i = 0; i < 40; i++) {
+				StalledMaster master = new StalledMaster();
+				master.init();
+				stalled.add(master);
+				endpoint(executors, master).submit(new ReadHoldingRegistersRequest(1, 0, 1),
+						RequestQueue.Priority.READ, 0, -1);
+			}
+			StalledMaster live = new StalledMaster();
+			live.init();
+			live.release.countDown();
+			RequestQueue.Transaction t = endpoint(executors, live).submit(new ReadHoldingRegistersRequest(1, 0, 1),
+					RequestQueue.Priority.READ, 0, -1);
+			t.await(5, TimeUnit.SECONDS);
+			assertEquals(1, live.sent.get());
+		} finally {
+			for (StalledMaster master : stalled) {
+				master.release.countDown();
+			}
+			executors.timer.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package modbus;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ResponseTimesTest {
+	@Test
+	public void emptyHasNoPercentile() {
+		ResponseTimes times = new ResponseTimes(10);
+		assertEquals(0, times.size());
+		assertEquals(0, times.percentile(0.99));
+	}
+
+	@Test
+	public void percentilesAreTakenFromTheSortedSamples() {
+		ResponseTimes times = new ResponseTimes(100);
+		for (int i = 100; i >= 1; i--) {
+			times.add(i);
+		}
+		assertEquals(100, times.size());
+		assertEquals(1, times.percentile(0));
+		assertEquals(50, times.percentile(0.5));
+		assertEquals(99, times.percentile(0.99));
+		assertEquals(100, times.percentile(1));
+	}
+
+	@Test
+	public void onlyTheMostRecentSamplesAreKept() {
+		ResponseTimes times = new ResponseTimes(10);
+		for (int i = 1; i <= 20; i++) {
+			times.add(i);
+		}
+		assertEquals(10, times.size());
+		assertEquals(11, times.percentile(0));
+		assertEquals(20, times.percentile(1));
+	}
+}